@@ -1,10 +1,10 @@
 package org.cryptocoinpartners.module;
 
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.annotation.Nullable;
 import javax.inject.Singleton;
@@ -15,6 +15,7 @@ import org.cryptocoinpartners.schema.Market;
 import org.cryptocoinpartners.schema.Offer;
 import org.cryptocoinpartners.schema.Trade;
 import org.cryptocoinpartners.service.QuoteService;
+import org.cryptocoinpartners.util.MarketArray;
 
 /**
  * This service listens to the Context and caches the most recent Trades and Books
@@ -27,7 +28,7 @@ public class BasicQuoteService implements QuoteService {
 
 	@Override
 	public Trade getLastTrade(Market market) {
-		return lastTradeByMarket.get(market.getSymbol());
+		return lastTradeByMarket.get(market);
 	}
 
 	@Override
@@ -37,7 +38,7 @@ public class BasicQuoteService implements QuoteService {
 
 	@Override
 	public Book getLastBook(Market market) {
-		return lastBookByMarket.get(market.getSymbol());
+		return lastBookByMarket.get(market);
 	}
 
 	@Override
@@ -59,7 +60,7 @@ public class BasicQuoteService implements QuoteService {
 	Offer getBestBidForListing(Listing listing) {
 		Offer bestBid = null;
 		for (Market market : marketsByListing.get(listing.getSymbol())) {
-			Book book = bestBidByMarket.get(market.getSymbol());
+			Book book = bestBidByMarket.get(market);
 			Offer testBestBid = book.getBestBid();
 			//noinspection ConstantConditions
 			if (bestBid == null || (testBestBid != null && testBestBid.getPrice().compareTo(bestBid.getPrice()) > 0))
@@ -73,7 +74,7 @@ public class BasicQuoteService implements QuoteService {
 	Offer getLastBidForMarket(Market market) {
 		Offer bestBid = null;
 		// for( Market market : marketsByListing.get(listing.getSymbol()) ) {
-		Book book = lastBookByMarket.get(market.getSymbol());
+		Book book = lastBookByMarket.get(market);
 		Offer testBestBid = book.getBestBid();
 		//noinspection ConstantConditions
 		if (bestBid == null || (testBestBid != null && testBestBid.getPrice().compareTo(bestBid.getPrice()) > 0))
@@ -90,7 +91,7 @@ public class BasicQuoteService implements QuoteService {
 	Offer getBestAskForListing(Listing listing) {
 		Offer bestAsk = null;
 		for (Market market : marketsByListing.get(listing.getSymbol())) {
-			Book book = bestAskByMarket.get(market.getSymbol());
+			Book book = bestAskByMarket.get(market);
 			Offer testBestAsk = book.getBestAsk();
 			//noinspection ConstantConditions
 			if (bestAsk == null || (testBestAsk != null && testBestAsk.getPrice().compareTo(bestAsk.getPrice()) < 0))
@@ -104,7 +105,7 @@ public class BasicQuoteService implements QuoteService {
 	Offer getLastAskForMarket(Market market) {
 		Offer bestAsk = null;
 
-		Book book = lastBookByMarket.get(market.getSymbol());
+		Book book = lastBookByMarket.get(market);
 		Offer testBestAsk = book.getBestAsk();
 		//noinspection ConstantConditions
 		if (bestAsk == null || (testBestAsk != null && testBestAsk.getPrice().compareTo(bestAsk.getPrice()) < 0))
@@ -113,6 +114,7 @@ public class BasicQuoteService implements QuoteService {
 		return bestAsk;
 	}
 
+	// synchronous, so strategies and services which receive a Book after this one see it in getLastBook()
 	@When("select * from Book")
 	private void recordBook(Book b) {
 		Market market = b.getMarket();
@@ -122,22 +124,21 @@ public class BasicQuoteService implements QuoteService {
 		if (lastBookForListing == null || lastBookForListing.getTime().isBefore(b.getTime()))
 			lastBookByListing.put(listingSymbol, b);
 
-		String marketSymbol = market.getSymbol();
-		Book lastBookForMarket = lastBookByMarket.get(marketSymbol);
+		Book lastBookForMarket = lastBookByMarket.get(market);
 		if (lastBookForMarket == null || lastBookForMarket.getTime().isBefore(b.getTime()))
-			lastBookByMarket.put(marketSymbol, b);
+			lastBookByMarket.put(market, b);
 
 		Offer bestBid = b.getBestBid();
-		Book lastBestBidBook = bestBidByMarket.get(marketSymbol);
+		Book lastBestBidBook = bestBidByMarket.get(market);
 		//noinspection ConstantConditions
 		if (bestBid != null && (lastBestBidBook == null || bestBid.getPrice().compareTo(lastBestBidBook.getBestBid().getPrice()) > 0))
-			bestBidByMarket.put(marketSymbol, b);
+			bestBidByMarket.put(market, b);
 
 		Offer bestAsk = b.getBestAsk();
-		Book lastBestAskBook = bestAskByMarket.get(marketSymbol);
+		Book lastBestAskBook = bestAskByMarket.get(market);
 		//noinspection ConstantConditions
 		if (bestAsk != null && (lastBestAskBook == null || bestAsk.getPrice().compareTo(lastBestAskBook.getBestAsk().getPrice()) < 0))
-			bestAskByMarket.put(marketSymbol, b);
+			bestAskByMarket.put(market, b);
 	}
 
 	@When("select * from Trade")
@@ -150,10 +151,9 @@ public class BasicQuoteService implements QuoteService {
 		if (lastTradeForListing == null || lastTradeForListing.getTime().isBefore(t.getTime()))
 			lastTradeByListing.put(listingSymbol, t);
 
-		String marketSymbol = market.getSymbol();
-		Trade lastTradeForMarket = lastTradeByMarket.get(marketSymbol);
+		Trade lastTradeForMarket = lastTradeByMarket.get(market);
 		if (lastTradeForMarket == null || lastTradeForMarket.getTime().isBefore(t.getTime()))
-			lastTradeByMarket.put(marketSymbol, t);
+			lastTradeByMarket.put(market, t);
 	}
 
 	private void handleMarket(Market market) {
@@ -168,11 +168,12 @@ public class BasicQuoteService implements QuoteService {
 			markets.add(market);
 	}
 
-	private final Map<String, Trade> lastTradeByListing = new HashMap<>();
-	private final Map<String, Book> lastBookByListing = new HashMap<>();
-	private final Map<String, Trade> lastTradeByMarket = new HashMap<>();
-	private final Map<String, Book> lastBookByMarket = new HashMap<>();
-	private final Map<String, Book> bestBidByMarket = new HashMap<>();
-	private final Map<String, Book> bestAskByMarket = new HashMap<>();
-	private final Map<String, Set<Market>> marketsByListing = new HashMap<>();
+	private final Map<String, Trade> lastTradeByListing = new ConcurrentHashMap<>();
+	private final Map<String, Book> lastBookByListing = new ConcurrentHashMap<>();
+	// per-Market state is indexed by Market.getIndex(), so recording an event hashes nothing
+	private final MarketArray<Trade> lastTradeByMarket = new MarketArray<>();
+	private final MarketArray<Book> lastBookByMarket = new MarketArray<>();
+	private final MarketArray<Book> bestBidByMarket = new MarketArray<>();
+	private final MarketArray<Book> bestAskByMarket = new MarketArray<>();
+	private final Map<String, Set<Market>> marketsByListing = new ConcurrentHashMap<>();
 }
@@ -0,0 +1,135 @@
+package org.cryptocoinpartners.module;
+
+import org.cryptocoinpartners.schema.Book;
+import org.cryptocoinpartners.schema.Market;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Delivers Books to one slow subscriber on its own thread, keeping only the newest Book of each Market.  When a Book
+ * arrives while an older Book of the same Market is still waiting, the older one is replaced and counted as
+ * coalesced, so a subscriber which falls behind catches up with the latest Books instead of working through stale
+ * ones.  Markets are delivered in the order they first had a Book waiting.
+ *
+ * @see When#coalesce()
+ */
+public class BookCoalescer {
+
+    public BookCoalescer(String name, EventRing.Handler handler) {
+        this.name = name;
+        this.handler = handler;
+    }
+
+
+    public void start() {
+        worker = new Thread(new Runnable() {
+            public void run() { deliver(); }
+        }, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+
+    /** Books offered after stop() are dropped and counted, since nothing would deliver them */
+    public void offer(Book book) {
+        if( !running ) {
+            if( dropped.incrementAndGet() == 1 )
+                log.warn(name + " is stopped.  Dropping the Books offered to it");
+            return;
+        }
+        offered.incrementAndGet();
+        Market market = book.getMarket();
+        if( pending.put(market, book) != null )
+            coalesced.incrementAndGet();
+        else
+            ready.add(market);
+    }
+
+
+    public String getName() { return name; }
+
+
+    /** @return the number of Books replaced by a newer Book of the same Market before they were delivered */
+    public long getCoalescedCount() { return coalesced.get(); }
+
+
+    public long getOfferedCount() { return offered.get(); }
+
+
+    public long getDeliveredCount() { return delivered.get(); }
+
+
+    /** @return the number of Books offered after stop() */
+    public long getDroppedCount() { return dropped.get(); }
+
+
+    /** @return the number of Markets with a Book waiting */
+    public int getPendingCount() { return pending.size(); }
+
+
+    /** Stops the worker after it delivers the Books already waiting, then logs the counts. */
+    public void stop() {
+        if( !running )
+            return;
+        running = false;
+        if( worker != null ) {
+            ready.add(STOP);
+            try {
+                if( Thread.currentThread() != worker )
+                    worker.join();
+            }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        log.info(name + ": " + offered.get() + " Books offered, " + delivered.get() + " delivered, " + coalesced.get()
+                 + " coalesced");
+    }
+
+
+    private void deliver() {
+        while( true ) {
+            Object market;
+            try {
+                market = ready.take();
+            }
+            catch( InterruptedException e ) {
+                return;
+            }
+            if( market == STOP )
+                return;
+            // a Book which arrives after this remove() queues the Market again
+            Book book = pending.remove(market);
+            if( book == null )
+                continue;
+            try {
+                handler.handle(book);
+            }
+            catch( Throwable t ) {
+                log.error("Error delivering " + book + " to " + name, t);
+            }
+            delivered.incrementAndGet();
+        }
+    }
+
+
+    private static final Object STOP = new Object();
+    private static final Logger log = LoggerFactory.getLogger(BookCoalescer.class);
+
+    private final String name;
+    private final EventRing.Handler handler;
+    private final ConcurrentHashMap<Market,Book> pending = new ConcurrentHashMap<>();
+    private final BlockingQueue<Object> ready = new LinkedBlockingQueue<>();
+    private final AtomicLong offered = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile Thread worker;
+    private volatile boolean running = true;
+}
@@ -2,15 +2,21 @@ package org.cryptocoinpartners.module;
 
 import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 
@@ -20,11 +26,17 @@ import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.PropertiesConfiguration;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.ArrayUtils;
+import org.cryptocoinpartners.schema.Book;
 import org.cryptocoinpartners.schema.Event;
+import org.cryptocoinpartners.schema.Listing;
+import org.cryptocoinpartners.schema.Market;
+import org.cryptocoinpartners.schema.MarketData;
 import org.cryptocoinpartners.service.Service;
 import org.cryptocoinpartners.util.ConfigUtil;
 import org.cryptocoinpartners.util.Injector;
+import org.cryptocoinpartners.util.MarketArray;
 import org.cryptocoinpartners.util.ReflectionUtil;
+import org.joda.time.Duration;
 import org.joda.time.Instant;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,6 +47,7 @@ import com.espertech.esper.client.EPServiceProvider;
 import com.espertech.esper.client.EPServiceProviderManager;
 import com.espertech.esper.client.EPStatement;
 import com.espertech.esper.client.EventBean;
+import com.espertech.esper.client.EventType;
 import com.espertech.esper.client.SafeIterator;
 import com.espertech.esper.client.deploy.DeploymentException;
 import com.espertech.esper.client.deploy.DeploymentOptions;
@@ -42,6 +55,13 @@ import com.espertech.esper.client.deploy.DeploymentResult;
 import com.espertech.esper.client.deploy.EPDeploymentAdmin;
 import com.espertech.esper.client.deploy.ParseException;
 import com.espertech.esper.client.time.CurrentTimeEvent;
+import com.espertech.esper.client.soda.EPStatementObjectModel;
+import com.espertech.esper.client.soda.FilterStream;
+import com.espertech.esper.client.soda.SelectClause;
+import com.espertech.esper.client.soda.SelectClauseElement;
+import com.espertech.esper.client.soda.SelectClauseWildcard;
+import com.espertech.esper.client.soda.Stream;
+import com.espertech.esper.client.soda.StreamSelector;
 import com.espertech.esper.client.time.CurrentTimeSpanEvent;
 import com.espertech.esper.core.service.EPServiceProviderImpl;
 import com.google.inject.Binder;
@@ -60,7 +80,20 @@ public class Context {
 	 * method for construction.
 	 */
 	public static Context create() {
-		return new Context(null);
+		Context context = new Context(null);
+		if (context.config != null && context.config.getBoolean("context.ingress.ring", false)) {
+			int capacity = context.config.getInt("context.ingress.size", DEFAULT_INGRESS_CAPACITY);
+			String wait = context.config.getString("context.ingress.wait", "park");
+			context.startIngress(capacity, EventRing.WaitStrategy.valueOf(wait.toUpperCase()));
+		}
+		if (context.config != null && context.config.getInt("context.partitions", 0) > 0) {
+			int capacity = context.config.getInt("context.partition.size", DEFAULT_PARTITION_CAPACITY);
+			String wait = context.config.getString("context.partition.wait", "park");
+			context.startPartitions(context.config.getInt("context.partitions"), capacity,
+					EventRing.WaitStrategy.valueOf(wait.toUpperCase()));
+		}
+		context.startConfiguredWatermark();
+		return context;
 	}
 
 	/**
@@ -68,7 +101,14 @@ public class Context {
 	 * of historical events.
 	 */
 	public static Context create(TimeProvider timeProvider) {
-		return new Context(timeProvider);
+		Context context = new Context(timeProvider);
+		context.startConfiguredWatermark();
+		return context;
+	}
+
+	void startConfiguredWatermark() {
+		if (config != null && config.getLong("context.watermark.lateness", 0) > 0)
+			startWatermark(new Duration(config.getLong("context.watermark.lateness")));
 	}
 
 	public interface TimeProvider {
@@ -88,6 +128,15 @@ public class Context {
 		public void afterAttach(Context context);
 	}
 
+	/**
+	 * Attached modules which own threads or other resources implement this to release them.  beforeDetach() is
+	 * called when the Context is destroyed or reset by a ContextPool, after the Events still queued in its rings are
+	 * published.
+	 */
+	public static interface DetachListener {
+		public void beforeDetach(Context context);
+	}
+
 	/**
 	 * This is the main way to register modules with the Context.  Attaching a class to a Context has
 	 * many effects:
@@ -101,6 +150,8 @@ public class Context {
 	 * <li>The created instance is <pre>subscribe()</pre>'d to the Context's esper, binding any @When annotations
 	 * on the instances's methods to esper statements</li>
 	 * <li>If the attached class implements AttachListener, the instance's afterAttach() method is called.</li>
+	 * <li>If the attached class implements DetachListener, the instance's beforeDetach() method is called when this
+	 * Context is destroyed or reset.</li>
 	 * <li>The new instance is returned after configuration</li>
 	 * </ol>
 	 */
@@ -155,6 +206,8 @@ public class Context {
 			AttachListener listener = (AttachListener) instance;
 			listener.afterAttach(this);
 		}
+		if (instance instanceof DetachListener)
+			detachListeners.add((DetachListener) instance);
 	}
 
 	public List<Object> loadStatementByName(String name) throws ParseException, DeploymentException, IOException {
@@ -182,39 +235,243 @@ public class Context {
 		attach(instance.getClass(), instance);
 	}
 
+	/**
+	 * Sends the Event to Esper and to the direct subscribers.  If an ingress ring was started, the Event is queued
+	 * for the ingress thread instead, unless it is published from a subscriber running on that thread.
+	 */
 	public void publish(Event e) {
-		Instant now;
-		if (timeProvider != null) {
-			now = timeProvider.nextTime(e);
-			if (now != null)
-				advanceTime(now);
-			else
+		EventRing ring = ingress;
+		if (ring != null && !ring.isDispatcherThread())
+			ring.publish(e);
+		else
+			accept(e);
+	}
+
+	/**
+	 * Publishes a batch of Events, which must be in time order.  Consecutive Events with the same time share a single
+	 * clock advance, and the engine time is read once per group instead of once per Event.  If an ingress ring was
+	 * started, the Events are queued for the ingress thread in the same order.
+	 */
+	public void publishAll(Collection<? extends Event> events) {
+		EventRing ring = ingress;
+		if (ring != null && !ring.isDispatcherThread()) {
+			for (Event e : events)
+				ring.publish(e);
+			return;
+		}
+		if (watermark != null) {
+			for (Event e : events)
+				accept(e);
+			return;
+		}
+		Instant groupTime = null;
+		Instant now = null;
+		for (Event e : events) {
+			Instant time = timeProvider == null ? null : timeProvider.nextTime(e);
+			if (now == null || (time != null && !time.equals(groupTime))) {
+				if (time != null)
+					advanceClock(time);
+				groupTime = time;
 				now = new Instant(epRuntime.getCurrentTime());
+			}
+			send(e, time != null ? time : now);
+		}
+	}
+
+	/**
+	 * Starts the optional ingress mode.  Events published from any thread are put into a pre-allocated ring, and a
+	 * single ingress thread publishes them into the engine in the order they were claimed.  Producers wait when the
+	 * ring is full, which bounds the work queued in front of the engine.
+	 *
+	 * @param capacity the number of Events which may be waiting, rounded up to a power of two
+	 */
+	public void startIngress(int capacity, EventRing.WaitStrategy waitStrategy) {
+		if (ingress != null)
+			throw new IllegalStateException("Ingress is already started");
+		EventRing ring = new EventRing(capacity, waitStrategy, new EventRing.Handler() {
+			@Override
+			public void handle(Event event) {
+				accept(event);
+			}
+		});
+		ring.start("Context ingress");
+		ingress = ring;
+	}
+
+	/**
+	 * @return the ingress ring with its depth and stall counters, or null if publish() goes directly to the engine
+	 */
+	public @Nullable EventRing getIngress() {
+		return ingress;
+	}
+
+	/**
+	 * Starts the partitioned mode.  MarketData is hashed by Market onto one of count worker threads, each fed by its
+	 * own EventRing, and the subscriptions which opted in run there: @When(partitioned=true) methods and Market or
+	 * Listing subscriptions made with partitioned set.  Each Market always maps to the same worker, so its events
+	 * stay in order, while different Markets are handled in parallel.  Esper statements and all other subscribers
+	 * still see the merged stream on the publishing thread.
+	 */
+	public void startPartitions(int count, int capacity, EventRing.WaitStrategy waitStrategy) {
+		if (partitions != null)
+			throw new IllegalStateException("Partitions are already started");
+		EventRing[] rings = new EventRing[count];
+		for (int i = 0; i < count; i++) {
+			rings[i] = new EventRing(capacity, waitStrategy, new EventRing.Handler() {
+				@Override
+				public void handle(Event event) {
+					dispatchPartitioned((MarketData) event);
+				}
+			});
+			rings[i].start("Context partition " + i);
+		}
+		partitions = rings;
+	}
+
+	/**
+	 * @return the partition rings with their depth and stall counters, or null if partitioned mode is not started
+	 */
+	public @Nullable EventRing[] getPartitions() {
+		EventRing[] rings = partitions;
+		return rings == null ? null : rings.clone();
+	}
+
+	/**
+	 * Starts the watermark mode, which tolerates MarketData arriving out of time order, for example from several
+	 * exchanges polled at once.  Each Exchange gets a reorder buffer, and buffered MarketData is published in time
+	 * order once the newest MarketData seen is allowedLateness ahead of it.  MarketData arriving behind the watermark
+	 * is dropped and counted instead of failing advanceTime().  Other Events are not buffered; the MarketData up to
+	 * their time is released before them.
+	 */
+	public void startWatermark(Duration allowedLateness) {
+		if (watermark != null)
+			throw new IllegalStateException("Watermark is already started");
+		watermark = new Watermark(allowedLateness, new Watermark.Releaser() {
+			@Override
+			public void release(Event event, Instant time) {
+				// in real time, the watermark orders by Event time but the engine keeps its own clock
+				publishNow(event, timeProvider != null ? time : null);
+			}
+		});
+	}
+
+	/**
+	 * @return the watermark with its late-drop and buffer counters, or null if Events are published as they arrive
+	 */
+	public @Nullable Watermark getWatermark() {
+		return watermark;
+	}
+
+	/**
+	 * @return the coalescers of the subscriptions made with @When(coalesce=true), with their coalesced Book counts
+	 */
+	public List<BookCoalescer> getCoalescers() {
+		return new ArrayList<>(coalescers);
+	}
+
+	private void accept(Event e) {
+		Instant time = timeProvider != null ? timeProvider.nextTime(e) : null;
+		Watermark mark = watermark;
+		if (mark != null) {
+			// only market data is reordered; Fills, Orders and the like are published as soon as they arrive
+			Instant order = timeProvider != null ? time : e.getTime();
+			if (e instanceof MarketData && order != null) {
+				Market market = ((MarketData) e).getMarket();
+				Object source = market != null ? market.getExchange() : e.getClass();
+				mark.add(source, order, e);
+				return;
+			}
+			// the buffered market data up to this Event's time goes first, so the clock never has to step back
+			if (time != null)
+				mark.advanceTo(time);
+		}
+		publishNow(e, time);
+	}
+
+	/** @param time the time from the TimeProvider, or null to publish at the engine's current time */
+	private void publishNow(Event e, @Nullable Instant time) {
+		Instant now;
+		if (time != null) {
+			// market data still being released when a later Event moved the clock is published at the current time
+			if (watermark != null && lastTime != null && time.isBefore(lastTime))
+				time = lastTime;
+			advanceClock(time);
+			now = time;
 		} else
 			now = new Instant(epRuntime.getCurrentTime());
+		send(e, now);
+	}
+
+	private void send(Event e, Instant now) {
 		e.publishedAt(now);
+		// the delivery order is documented on subscribe(Object, Method, String)
 		epRuntime.sendEvent(e);
+		for (EventListener listener : directSubscriptions.listeners(e.getClass()))
+			listener.update(e);
+		if (e instanceof MarketData) {
+			MarketData data = (MarketData) e;
+			dispatchByMarket(data, false);
+			EventRing[] rings = partitions;
+			if (rings != null && data.getMarket() != null) {
+				EventRing ring = rings[(data.getMarket().hashCode() & Integer.MAX_VALUE) % rings.length];
+				if (!ring.isDispatcherThread()) {
+					ring.publish(data);
+					return;
+				}
+			}
+			dispatchPartitioned(data);
+		}
 	}
 
 	public void destroy() {
 		privateDestroy();
 	}
 
+	/**
+	 * Moves the clock forward, firing any timers due by now.  In watermark mode, the buffered Events up to now are
+	 * published first, and any which arrive later are late.
+	 */
 	public void advanceTime(Instant now) {
 		if (timeProvider == null)
 			throw new IllegalArgumentException("Can only advanceTime() when the Context was constructed with a TimeProvider");
+		if (watermark != null)
+			watermark.advanceTo(now);
+		advanceClock(now);
+	}
+
+	private void advanceClock(Instant now) {
 		if (lastTime == null) {
 			// jump to the start time instead of stepping to it
 			epRuntime.sendEvent(new CurrentTimeEvent(now.getMillis()));
 		} else if (now.isBefore(lastTime))
 			throw new IllegalArgumentException("advanceTime must always move time forward. " + now + " < " + lastTime);
 		else if (now.isAfter(lastTime)) {
-			// step time up to now
-			epRuntime.sendEvent(new CurrentTimeSpanEvent(now.getMillis()));
+			if (skipTimerGaps) {
+				// jump from one scheduled timer to the next, then to now
+				Long next;
+				while ((next = epRuntime.getNextScheduledTime()) != null && next < now.getMillis()
+						&& next > lastTime.getMillis()) {
+					lastTime = new Instant(next);
+					epRuntime.sendEvent(new CurrentTimeEvent(next));
+				}
+				epRuntime.sendEvent(new CurrentTimeEvent(now.getMillis()));
+			} else {
+				// step time up to now
+				epRuntime.sendEvent(new CurrentTimeSpanEvent(now.getMillis()));
+			}
 		}
 		lastTime = now;
 	}
 
+	/**
+	 * When true, advanceTime() asks the engine for its next scheduled timer and jumps straight to it, once per timer,
+	 * instead of stepping through the whole span.  Every timer still fires at its own instant, but long gaps without
+	 * events or timers cost nothing, which suits replays of sparse data.
+	 */
+	public void setSkipTimerGaps(boolean skipTimerGaps) {
+		this.skipTimerGaps = skipTimerGaps;
+	}
+
 	public void subscribe(Object listener) {
 		if (listener == this)
 			return;
@@ -229,14 +486,110 @@ public class Context {
 			if (when != null) {
 				String statement = when.value();
 				log.debug("subscribing " + method + " with statement \"" + statement + "\"");
-				subscribe(listener, method, statement);
+				subscribe(listener, method, statement, when.partitioned(), when.coalesce());
 			}
 		}
 	}
 
+	/**
+	 * Statements of the form "select * from Type" with no filter, window or pattern are not given to Esper.  Their
+	 * methods are called directly by publish() for every Event which is an instance of Type, so the most common
+	 * subscriptions skip Esper's statement evaluation.  Events produced inside Esper by "insert into" are only seen by
+	 * Esper statements.
+	 * <p/>
+	 * An Event is delivered first to the subscribers of Esper statements, in the order Esper chooses, then to these
+	 * plain subscriptions in the order they were made, then to the Market and Listing subscriptions.  Partitioned
+	 * subscriptions run on their workers and are not ordered with the others.
+	 */
 	public void subscribe(Object listener, Method method, String statement) {
-		EPStatement epStatement = epAdministrator.createEPL(statement);
-		subscribe(listener, method, epStatement);
+		subscribe(listener, method, statement, false);
+	}
+
+	/**
+	 * @param partitioned if true, the statement must be a plain "select * from Type" of a MarketData type, and the
+	 *                    method is called on the partition worker of each event's Market.  See startPartitions()
+	 */
+	public void subscribe(Object listener, Method method, String statement, boolean partitioned) {
+		subscribe(listener, method, statement, partitioned, false);
+	}
+
+	/**
+	 * @param coalesce if true, the statement must be a plain "select * from Book", and in a live Context the method
+	 *                 is called on its own thread with only the newest waiting Book of each Market.  See BookCoalescer
+	 */
+	public void subscribe(Object listener, Method method, String statement, boolean partitioned, boolean coalesce) {
+		EPStatementObjectModel model = compile(statement);
+		Class<?> eventType = plainSelectStarType(model);
+		Class<?>[] parameterTypes = method.getParameterTypes();
+		boolean direct = eventType != null && parameterTypes.length == 1 && parameterTypes[0].isAssignableFrom(eventType);
+		if (coalesce) {
+			if (partitioned || !direct || !Book.class.isAssignableFrom(eventType))
+				throw new IllegalArgumentException("Coalesced subscriptions must be \"select * from Book\" and not partitioned: "
+						+ method + " \"" + statement + "\"");
+			// replays stay deterministic by delivering every Book on the publishing thread
+			if (timeProvider == null) {
+				CoalescingListener coalescing = new CoalescingListener(bind(listener, method), method, statement);
+				coalescers.add(coalescing.coalescer);
+				coalescing.coalescer.start();
+				directSubscriptions.add(eventType, coalescing);
+				return;
+			}
+		}
+		if (partitioned) {
+			if (!direct || !MarketData.class.isAssignableFrom(eventType))
+				throw new IllegalArgumentException("Partitioned subscriptions must be \"select * from\" a MarketData type: "
+						+ method + " \"" + statement + "\"");
+			partitionedSubscriptions.add(eventType, new EventListener(bind(listener, method), method, statement));
+			return;
+		}
+		if (direct) {
+			directSubscriptions.add(eventType, new EventListener(bind(listener, method), method, statement));
+			return;
+		}
+		EPStatement epStatement = epAdministrator.create(model);
+		subscribe(listener, method, epStatement, isSelectStar(model));
+	}
+
+	/**
+	 * Calls the listener's method only for events of the given type from one Market.  The subscription is found with a
+	 * hash lookup on the event's Market, so a strategy trading one Market is not called for every other Market.
+	 *
+	 * @param methodName the name of a method on the listener taking a single eventType argument
+	 */
+	public void subscribe(Object listener, String methodName, Class<? extends MarketData> eventType, Market market) {
+		subscribe(listener, methodName, eventType, market, false);
+	}
+
+	/**
+	 * @param partitioned if true and partitioned mode is started, the method is called on the Market's partition
+	 *                    worker instead of the publishing thread, like a @When(partitioned=true) method
+	 * @see #subscribe(Object, String, Class, Market)
+	 */
+	public void subscribe(Object listener, String methodName, Class<? extends MarketData> eventType, Market market,
+			boolean partitioned) {
+		Method method = findMethod(listener, methodName, eventType);
+		DirectSubscription subscription = directSubscription(market, listener, method, eventType, partitioned);
+		synchronized (subscriptionsByMarket) {
+			subscriptionsByMarket.put(market, append(subscriptionsByMarket.get(market), subscription));
+		}
+	}
+
+	/**
+	 * Calls the listener's method only for events of the given type from any Market of the Listing.
+	 *
+	 * @see #subscribe(Object, String, Class, Market)
+	 */
+	public void subscribe(Object listener, String methodName, Class<? extends MarketData> eventType, Listing listing) {
+		subscribe(listener, methodName, eventType, listing, false);
+	}
+
+	/**
+	 * @see #subscribe(Object, String, Class, Market, boolean)
+	 */
+	public void subscribe(Object listener, String methodName, Class<? extends MarketData> eventType, Listing listing,
+			boolean partitioned) {
+		Method method = findMethod(listener, methodName, eventType);
+		subscribeByKey(subscriptionsByListing, listing, listener, method, eventType, partitioned);
 	}
 
 	public void loadStatements(String source) {
@@ -279,8 +632,135 @@ public class Context {
 	// End of Public Interface
 	//
 
-	private void subscribe(Object listener, Method method, EPStatement statement) {
-		statement.setSubscriber(new Listener(listener, method, statement.getText()));
+	private void subscribe(Object listener, Method method, EPStatement statement, boolean selectStar) {
+		MethodHandle handle = bind(listener, method);
+		Class<?>[] parameterTypes = method.getParameterTypes();
+		if (parameterTypes.length == 1 && selectStar
+				&& parameterTypes[0].isAssignableFrom(statement.getEventType().getUnderlyingType()))
+			statement.setSubscriber(new EventListener(handle, method, statement.getText()));
+		else
+			statement.setSubscriber(new Listener(handle, method, statement.getText()));
+	}
+
+	/**
+	 * Looks up the method once, so each event is dispatched through a MethodHandle instead of a reflective
+	 * Method.invoke() with an access check.
+	 */
+	private static MethodHandle bind(Object listener, Method method) {
+		boolean wasAccessible = method.isAccessible();
+		method.setAccessible(true);
+		try {
+			MethodHandle handle = MethodHandles.lookup().unreflect(method);
+			return Modifier.isStatic(method.getModifiers()) ? handle : handle.bindTo(listener);
+		} catch (IllegalAccessException e) {
+			throw new EsperError("Could not bind method " + method, e);
+		} finally {
+			method.setAccessible(wasAccessible);
+		}
+	}
+
+	/**
+	 * @return true if the statement selects whole events from a single stream, like "select * from Book".  Esper
+	 * delivers those events to the subscriber directly instead of in a row array.
+	 */
+	private static boolean isSelectStar(EPStatementObjectModel model) {
+		SelectClause selectClause = model.getSelectClause();
+		if (selectClause == null || model.getFromClause() == null)
+			return false;
+		List<SelectClauseElement> selectList = selectClause.getSelectList();
+		return selectList.size() == 1 && selectList.get(0) instanceof SelectClauseWildcard
+				&& model.getFromClause().getStreams().size() == 1;
+	}
+
+	/**
+	 * @return the Event class named by a statement which is exactly "select * from Type [as alias]", or null if the
+	 * statement has anything more and must be evaluated by Esper
+	 */
+	private Class<?> plainSelectStarType(EPStatementObjectModel model) {
+		if (!isSelectStar(model) || model.getSelectClause().isDistinct()
+				|| model.getSelectClause().getStreamSelector() != StreamSelector.ISTREAM_ONLY)
+			return null;
+		if (model.getWhereClause() != null || model.getGroupByClause() != null || model.getHavingClause() != null
+				|| model.getOrderByClause() != null || model.getOutputLimitClause() != null
+				|| model.getRowLimitClause() != null || model.getInsertInto() != null
+				|| model.getMatchRecognizeClause() != null || model.getContextName() != null
+				|| !model.getAnnotations().isEmpty() || model.getFromClause().getOuterJoinQualifiers().size() > 0)
+			return null;
+		Stream stream = model.getFromClause().getStreams().get(0);
+		if (!(stream instanceof FilterStream))
+			return null;
+		FilterStream filterStream = (FilterStream) stream;
+		if (filterStream.getFilter().getFilter() != null || !filterStream.getViews().isEmpty()
+				|| filterStream.getFilter().getOptionalPropertySelects() != null
+				&& !filterStream.getFilter().getOptionalPropertySelects().isEmpty())
+			return null;
+		EventType eventType = epAdministrator.getConfiguration().getEventType(filterStream.getFilter().getEventTypeName());
+		if (eventType == null || !Event.class.isAssignableFrom(eventType.getUnderlyingType()))
+			return null;
+		return eventType.getUnderlyingType();
+	}
+
+	private <K> void subscribeByKey(Map<K, DirectSubscription[]> subscriptions, K key, Object listener, Method method,
+			Class<?> eventType, boolean partitioned) {
+		DirectSubscription subscription = directSubscription(key, listener, method, eventType, partitioned);
+		synchronized (subscriptions) {
+			subscriptions.put(key, append(subscriptions.get(key), subscription));
+		}
+	}
+
+	private DirectSubscription directSubscription(Object key, Object listener, Method method, Class<?> eventType,
+			boolean partitioned) {
+		String description = eventType.getSimpleName() + " from " + key;
+		log.debug("subscribing " + method + " to " + description);
+		return new DirectSubscription(eventType, new EventListener(bind(listener, method), method, description),
+				partitioned);
+	}
+
+	private static DirectSubscription[] append(@Nullable DirectSubscription[] existing, DirectSubscription subscription) {
+		DirectSubscription[] updated;
+		if (existing == null)
+			updated = new DirectSubscription[1];
+		else
+			updated = Arrays.copyOf(existing, existing.length + 1);
+		updated[updated.length - 1] = subscription;
+		return updated;
+	}
+
+	private void dispatchPartitioned(MarketData data) {
+		for (EventListener listener : partitionedSubscriptions.listeners(data.getClass()))
+			listener.update(data);
+		dispatchByMarket(data, true);
+	}
+
+	/** Calls the Market and Listing subscriptions which asked to be partitioned, or those which did not */
+	private void dispatchByMarket(MarketData data, boolean partitioned) {
+		Market market = data.getMarket();
+		if (market == null)
+			return;
+		dispatch(data, subscriptionsByMarket.get(market), partitioned);
+		dispatch(data, subscriptionsByListing.get(market.getListing()), partitioned);
+	}
+
+	private static void dispatch(Event e, @Nullable DirectSubscription[] subscriptions, boolean partitioned) {
+		if (subscriptions == null)
+			return;
+		for (DirectSubscription subscription : subscriptions) {
+			if (subscription.partitioned == partitioned && subscription.eventType.isInstance(e))
+				subscription.listener.update(e);
+		}
+	}
+
+	private static Method findMethod(Object listener, String methodName, Class<?> eventType) {
+		for (Class<?> cls = listener.getClass(); cls != Object.class; cls = cls.getSuperclass()) {
+			for (Method method : cls.getDeclaredMethods()) {
+				Class<?>[] parameterTypes = method.getParameterTypes();
+				if (method.getName().equals(methodName) && parameterTypes.length == 1
+						&& parameterTypes[0].isAssignableFrom(eventType))
+					return method;
+			}
+		}
+		throw new IllegalArgumentException("No method " + methodName + "(" + eventType.getSimpleName() + ") on "
+				+ listener.getClass().getName());
 	}
 
 	private Class<?> findModuleClass(String name) {
@@ -434,18 +914,18 @@ public class Context {
 		return childInjector;
 	}
 
-	private Context(TimeProvider timeProvider) {
+	Context(TimeProvider timeProvider) {
 		this.timeProvider = timeProvider;
 		final com.espertech.esper.client.Configuration esperConfig = new com.espertech.esper.client.Configuration();
 		esperConfig.addEventType(Event.class);
-		Set<Class<? extends Event>> eventTypes = ReflectionUtil.getSubtypesOf(Event.class);
-		for (Class<? extends Event> eventType : eventTypes)
+		for (Class<? extends Event> eventType : eventTypes())
 			esperConfig.addEventType(eventType);
 		esperConfig.addImport(IntoMethod.class);
 		if (timeProvider != null) {
 			esperConfig.getEngineDefaults().getThreading().setInternalTimerEnabled(false);
 		}
-		epService = EPServiceProviderManager.getDefaultProvider(esperConfig);
+		// each Context gets its own engine, so several may run side by side in one JVM
+		epService = EPServiceProviderManager.getProvider("Context-" + engineIds.incrementAndGet(), esperConfig);
 		if (timeProvider != null) {
 			lastTime = timeProvider.getInitialTime();
 			final EPServiceProviderImpl epService1 = (EPServiceProviderImpl) epService;
@@ -453,6 +933,10 @@ public class Context {
 		}
 		epRuntime = epService.getEPRuntime();
 		epAdministrator = epService.getEPAdministrator();
+		createInjector();
+	}
+
+	private void createInjector() {
 		config = ConfigUtil.combined();
 		//injector = Injector.root().createChildInjector(subscribingModule,new Module()
 		injector = Injector.root().createChildInjector(new Module() {
@@ -465,6 +949,54 @@ public class Context {
 		injector.setConfig(config);
 	}
 
+	/**
+	 * Returns this Context to the state of a new one so a ContextPool can hand it to another run.  All statements,
+	 * subscriptions and attached modules are dropped and the clock restarts at the new TimeProvider's initial time.
+	 * The engine clock never moves backwards: if the initial time is before it, the engine is initialized again at the
+	 * initial time instead.  Either way the event types and the parsed statements of this Context are kept.
+	 */
+	void reset(TimeProvider timeProvider) {
+		stopRings();
+		detachModules();
+		clearSubscriptions();
+		this.timeProvider = timeProvider;
+		lastTime = timeProvider.getInitialTime();
+		skipTimerGaps = false;
+		if (lastTime.getMillis() < epRuntime.getCurrentTime()) {
+			// initializing destroys every statement
+			((EPServiceProviderImpl) epService).initialize(lastTime.getMillis());
+			epRuntime = epService.getEPRuntime();
+			epAdministrator = epService.getEPAdministrator();
+		} else {
+			epAdministrator.destroyAllStatements();
+			epRuntime.sendEvent(new CurrentTimeEvent(lastTime.getMillis()));
+		}
+		createInjector();
+	}
+
+	/**
+	 * Compiles the statement text the first time this Context sees it.  Object models are mutable, so each Context
+	 * keeps its own instead of sharing them with other engines.  They survive reset(), so a pooled Context parses each
+	 * statement only once.
+	 */
+	EPStatementObjectModel compile(String statement) {
+		EPStatementObjectModel model = compiledStatements.get(statement);
+		if (model == null) {
+			model = epAdministrator.compileEPL(statement);
+			compiledStatements.put(statement, model);
+		}
+		return model;
+	}
+
+	/** @return the Event subtypes registered with each engine, found by the classpath scan of the first Context */
+	private static Set<Class<? extends Event>> eventTypes() {
+		synchronized (Context.class) {
+			if (eventTypes == null)
+				eventTypes = ReflectionUtil.getSubtypesOf(Event.class);
+			return eventTypes;
+		}
+	}
+
 	/**
 	 * this class conforms to the callback specs for an Esper subscriber
 	 * http://esper.codehaus.org/esper-4.11.0/doc/reference/en-US/html_single/index.html#api-admin-subscriber
@@ -472,41 +1004,160 @@ public class Context {
 	 */
 	private class Listener {
 		public void update(Object[] row) {
-			boolean wasAccessible = method.isAccessible();
-			method.setAccessible(true);
 			try {
-				method.invoke(delegate, row);
-			} catch (IllegalAccessException | InvocationTargetException e) {
-				throw new EsperError("Could not invoke method " + method + " on statement trigger " + statement, e);
+				handle.invokeExact(row);
 			} catch (Throwable t) {
-				throw new Error("Error invoking " + delegate.getClass().getName() + "." + method.getName(), t);
-			} finally {
-				method.setAccessible(wasAccessible);
+				throw new EsperError("Could not invoke method " + method + " on statement trigger " + statement, t);
 			}
 		}
 
-		private Listener(Object delegate, Method method, String statement) {
-			this.delegate = delegate;
+		private Listener(MethodHandle handle, Method method, String statement) {
+			this.handle = handle.asSpreader(Object[].class, method.getParameterTypes().length).asType(
+					MethodType.methodType(void.class, Object[].class));
 			this.method = method;
 			this.statement = statement;
 		}
 
-		private final Object delegate;
+		private final MethodHandle handle;
 		private final Method method;
 		private final String statement;
 	}
 
+	/**
+	 * The subscriber for "select * from X" statements.  Esper passes each event as the only argument, so there is no
+	 * row array to allocate or spread.  publish() also calls these directly for the plain statements which are never
+	 * given to Esper.
+	 */
+	private class EventListener {
+		public void update(Object event) {
+			try {
+				handle.invokeExact(event);
+			} catch (Throwable t) {
+				throw new EsperError("Could not invoke method " + method + " on statement trigger " + statement, t);
+			}
+		}
+
+		private EventListener(MethodHandle handle, Method method, String statement) {
+			this.handle = handle.asType(MethodType.methodType(void.class, Object.class));
+			this.method = method;
+			this.statement = statement;
+		}
+
+		private final MethodHandle handle;
+		private final Method method;
+		private final String statement;
+	}
+
+	/**
+	 * Hands each Book to a BookCoalescer, whose thread calls the subscriber with the newest Book of each Market.
+	 */
+	private class CoalescingListener extends EventListener {
+		@Override
+		public void update(Object event) {
+			Book book = (Book) event;
+			if (book.getMarket() == null)
+				super.update(book);
+			else
+				coalescer.offer(book);
+		}
+
+		private CoalescingListener(MethodHandle handle, Method method, String statement) {
+			super(handle, method, statement);
+			coalescer = new BookCoalescer("Coalescing " + method.getDeclaringClass().getSimpleName() + "."
+					+ method.getName(), new EventRing.Handler() {
+				@Override
+				public void handle(Event event) {
+					CoalescingListener.super.update(event);
+				}
+			});
+		}
+
+		private final BookCoalescer coalescer;
+	}
+
+	private static class DirectSubscription {
+		private DirectSubscription(Class<?> eventType, EventListener listener) {
+			this(eventType, listener, false);
+		}
+
+		private DirectSubscription(Class<?> eventType, EventListener listener, boolean partitioned) {
+			this.eventType = eventType;
+			this.listener = listener;
+			this.partitioned = partitioned;
+		}
+
+		private final Class<?> eventType;
+		private final EventListener listener;
+		private final boolean partitioned;
+	}
+
+	/**
+	 * Subscriptions by Event type.  Each Event class gets a precomputed array of the subscribers to it and to its
+	 * superclasses, in subscription order, which is rebuilt after a new subscription.
+	 */
+	private static class SubscriptionTable {
+		private void add(Class<?> eventType, EventListener listener) {
+			synchronized (subscriptions) {
+				subscriptions.add(new DirectSubscription(eventType, listener));
+				listenersByClass.clear();
+			}
+		}
+
+		private EventListener[] listeners(Class<?> eventClass) {
+			EventListener[] result = listenersByClass.get(eventClass);
+			if (result != null)
+				return result;
+			synchronized (subscriptions) {
+				List<EventListener> found = new ArrayList<>();
+				for (DirectSubscription subscription : subscriptions) {
+					if (subscription.eventType.isAssignableFrom(eventClass))
+						found.add(subscription.listener);
+				}
+				result = found.toArray(new EventListener[found.size()]);
+				listenersByClass.put(eventClass, result);
+			}
+			return result;
+		}
+
+		private void clear() {
+			synchronized (subscriptions) {
+				subscriptions.clear();
+				listenersByClass.clear();
+			}
+		}
+
+		private final List<DirectSubscription> subscriptions = new ArrayList<>();
+		private final Map<Class<?>, EventListener[]> listenersByClass = new ConcurrentHashMap<>();
+	}
+
+	private static final int DEFAULT_INGRESS_CAPACITY = 65536;
+	private static final int DEFAULT_PARTITION_CAPACITY = 16384;
+	private static final AtomicLong engineIds = new AtomicLong();
+	private static Set<Class<? extends Event>> eventTypes;
 	private static Logger log = LoggerFactory.getLogger(Context.class);
 
 	private Configuration config;
 	private Injector injector;
 	private TimeProvider timeProvider;
 	private Instant lastTime = null;
+	private boolean skipTimerGaps;
 	private EPServiceProvider epService;
 	private EPRuntime epRuntime;
 	private EPAdministrator epAdministrator;
+	private volatile EventRing ingress;
+	private volatile EventRing[] partitions;
+	private volatile Watermark watermark;
+	private final List<BookCoalescer> coalescers = new CopyOnWriteArrayList<>();
+	private final List<DetachListener> detachListeners = new CopyOnWriteArrayList<>();
+	private final SubscriptionTable directSubscriptions = new SubscriptionTable();
+	private final SubscriptionTable partitionedSubscriptions = new SubscriptionTable();
+	private final MarketArray<DirectSubscription[]> subscriptionsByMarket = new MarketArray<>();
+	private final Map<Listing, DirectSubscription[]> subscriptionsByListing = new ConcurrentHashMap<>();
+	private final Map<String, EPStatementObjectModel> compiledStatements = new ConcurrentHashMap<>();
 
 	private void privateDestroy() {
+		stopRings();
+		detachModules();
 		epService.destroy();
 
 		// null all the variables here to eliminate any crazy cycles
@@ -517,15 +1168,45 @@ public class Context {
 		epService = null;
 		epRuntime = null;
 		epAdministrator = null;
+		clearSubscriptions();
+	}
 
-		ScheduledExecutorService svc = Executors.newSingleThreadScheduledExecutor();
-		Runnable garbageCollection = new Runnable() {
-			@Override
-			public void run() {
-				Runtime.getRuntime().gc();
+	private void stopRings() {
+		if (ingress != null) {
+			// publish whatever is still queued before the engine goes away
+			ingress.stop();
+			ingress = null;
+		}
+		if (watermark != null) {
+			watermark.flush();
+			watermark = null;
+		}
+		if (partitions != null) {
+			for (EventRing ring : partitions)
+				ring.stop();
+			partitions = null;
+		}
+		for (BookCoalescer coalescer : coalescers)
+			coalescer.stop();
+	}
+
+	private void detachModules() {
+		for (DetachListener listener : detachListeners) {
+			try {
+				listener.beforeDetach(this);
+			} catch (RuntimeException e) {
+				log.error("Could not detach " + listener, e);
 			}
-		};
-		svc.schedule(garbageCollection, 1, TimeUnit.MILLISECONDS);
+		}
+		detachListeners.clear();
+	}
+
+	private void clearSubscriptions() {
+		coalescers.clear();
+		directSubscriptions.clear();
+		partitionedSubscriptions.clear();
+		subscriptionsByMarket.clear();
+		subscriptionsByListing.clear();
 	}
 
 	/*
@@ -0,0 +1,90 @@
+package org.cryptocoinpartners.module;
+
+import org.cryptocoinpartners.schema.Event;
+import org.joda.time.Instant;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+
+/**
+ * Keeps idle Contexts for runs which replay history, like backtests and parameter sweeps.  Creating a Context scans
+ * the classpath, builds an engine and parses every statement it subscribes; a pooled Context has done all of that
+ * already, and each Context has its own engine, so several runs may use the pool from different threads at once.
+ * Only Contexts driven by a TimeProvider may be pooled.
+ */
+public class ContextPool {
+
+    /** @param size the number of idle Contexts to create now and keep between runs */
+    public ContextPool(int size) {
+        idle = new ArrayBlockingQueue<>(size);
+        for( int i = 0; i < size; i++ )
+            idle.add(new Context(IDLE_TIME));
+    }
+
+
+    /**
+     * Parses the @When statements of these module classes in every idle Context ahead of the first run, so no run pays
+     * for it.  The statements themselves are still created by each run, because a Context drops them between runs.
+     */
+    public ContextPool warm(Class<?>... moduleClasses) {
+        for( Context context : idle ) {
+            for( Class<?> moduleClass : moduleClasses ) {
+                for( Class<?> cls = moduleClass; cls != null && cls != Object.class; cls = cls.getSuperclass() ) {
+                    for( Method method : cls.getDeclaredMethods() ) {
+                        When when = method.getAnnotation(When.class);
+                        if( when != null )
+                            context.compile(when.value());
+                    }
+                }
+            }
+        }
+        return this;
+    }
+
+
+    /**
+     * @return an idle Context reset to the given TimeProvider, or a new Context if none are idle.  Either way the
+     * configured watermark is started, as it is by Context.create()
+     */
+    public Context acquire(Context.TimeProvider timeProvider) {
+        Context context = idle.poll();
+        if( context == null )
+            return Context.create(timeProvider);
+        context.reset(timeProvider);
+        // reset() stopped the watermark of the previous run, and idle Contexts never had one
+        context.startConfiguredWatermark();
+        return context;
+    }
+
+
+    /**
+     * Returns a Context after its run.  Its statements and modules are dropped immediately; if the pool is already
+     * full the Context is destroyed instead.
+     */
+    public void release(Context context) {
+        context.reset(IDLE_TIME);
+        if( !idle.offer(context) )
+            context.destroy();
+    }
+
+
+    /** Destroys the idle Contexts.  Contexts still in use are not affected. */
+    public void destroy() {
+        Context context;
+        while( (context = idle.poll()) != null )
+            context.destroy();
+    }
+
+
+    public int getIdleCount() { return idle.size(); }
+
+
+    private static final Context.TimeProvider IDLE_TIME = new Context.TimeProvider() {
+        public Instant getInitialTime() { return new Instant(0); }
+        public Instant nextTime(Event event) { return null; }
+    };
+
+    private final BlockingQueue<Context> idle;
+}
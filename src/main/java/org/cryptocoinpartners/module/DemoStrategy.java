@@ -24,7 +24,7 @@ import org.cryptocoinpartners.schema.Position;
  * @author Tim Olson
  */
 @SuppressWarnings("UnusedDeclaration")
-public class DemoStrategy extends SimpleStatefulStrategy {
+public class DemoStrategy extends SimpleStatefulStrategy implements Context.AttachListener {
 
 	@Inject
 	public DemoStrategy(Context context, Configuration config) {
@@ -38,23 +38,24 @@ public class DemoStrategy extends SimpleStatefulStrategy {
 		volumeCount = DiscreteAmount.roundedCountForBasis(volumeBD, market.getVolumeBasis());
 	}
 
-	@When("select * from Book")
-	void handleBook(Book b) {
-
-		if (b.getMarket().equals(market)) {
+	@Override
+	public void afterAttach(Context context) {
+		// only Books from our market are delivered to handleBook()
+		context.subscribe(this, "handleBook", Book.class, market);
+	}
 
-			bestBid = b.getBestBid();
-			bestAsk = b.getBestAsk();
-			if (bestBid != null && bestAsk != null) {
-				ready();
-				enterTrade();
-				exitTrade();
-				Iterator<Position> it = portfolioService.getPositions(portfolio).iterator();
-				while (it.hasNext()) {
-					Position position = it.next();
-					log.info(portfolioService.getMarketValue(position).toString());
+	void handleBook(Book b) {
+		bestBid = b.getBestBid();
+		bestAsk = b.getBestAsk();
+		if (bestBid != null && bestAsk != null) {
+			ready();
+			enterTrade();
+			exitTrade();
+			Iterator<Position> it = portfolioService.getPositions(portfolio).iterator();
+			while (it.hasNext()) {
+				Position position = it.next();
+				log.info(portfolioService.getMarketValue(position).toString());
 
-				}
 			}
 		}
 	}
@@ -0,0 +1,183 @@
+package org.cryptocoinpartners.module;
+
+import org.cryptocoinpartners.schema.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * A pre-allocated ring of Events with many producers and one consumer.  Producers claim a sequence number with a
+ * single atomic increment, write their Event into that slot, then mark the slot as published.  One dispatcher thread
+ * takes the Events in sequence order and hands them to a Handler, so the Handler never runs concurrently with itself.
+ * When the ring is full, producers park until the dispatcher frees a slot instead of growing the ring.
+ *
+ * @see Context#startIngress(int, EventRing.WaitStrategy)
+ */
+public class EventRing {
+
+    public interface Handler {
+        void handle(Event event);
+    }
+
+
+    /** How the dispatcher waits while the ring is empty. */
+    public enum WaitStrategy {
+        /** lowest latency, but uses a whole core while idle */
+        BUSY_SPIN {
+            void idle(EventRing ring) { }
+        },
+        /** gives up the core to other runnable threads while idle */
+        YIELD {
+            void idle(EventRing ring) { Thread.yield(); }
+        },
+        /** sleeps until a producer wakes the dispatcher.  uses no CPU while idle */
+        PARK {
+            void idle(EventRing ring) { LockSupport.parkNanos(ring, PARK_NANOS); }
+        };
+
+        abstract void idle(EventRing ring);
+    }
+
+
+    /** @param capacity rounded up to a power of two */
+    public EventRing(int capacity, WaitStrategy waitStrategy, Handler handler) {
+        if( capacity < 1 )
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if( size < capacity )
+            size <<= 1;
+        this.mask = size - 1;
+        this.entries = new AtomicReferenceArray<>(size);
+        this.published = new AtomicLongArray(size);
+        for( int i = 0; i < size; i++ )
+            published.set(i, -1);
+        this.waitStrategy = waitStrategy;
+        this.handler = handler;
+    }
+
+
+    public void start(String threadName) {
+        dispatcher = new Thread(new Runnable() {
+            public void run() { dispatch(); }
+        }, threadName);
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+
+    /** Adds an Event to the ring, waiting if the ring is full. */
+    public void publish(Event event) {
+        if( !running )
+            throw new IllegalStateException("EventRing is stopped");
+        long sequence = claimed.getAndIncrement();
+        long wrapPoint = sequence - entries.length();
+        if( wrapPoint >= consumed.get() ) {
+            stalls.incrementAndGet();
+            // the dispatcher keeps draining until every claimed slot is handled, even after stop().  producers never
+            // spin here, because a spinning producer could starve the dispatcher it is waiting for
+            while( wrapPoint >= consumed.get() )
+                LockSupport.parkNanos(1);
+        }
+        int index = (int) (sequence & mask);
+        entries.lazySet(index, event);
+        published.set(index, sequence); // a volatile write, so the entry is visible before the slot is published
+        if( dispatcherParked )
+            LockSupport.unpark(dispatcher);
+    }
+
+
+    /** @return true if the calling thread is the dispatcher, which must not wait on its own ring */
+    public boolean isDispatcherThread() { return Thread.currentThread() == dispatcher; }
+
+
+    /** @return the number of Events claimed by producers but not yet handled */
+    public long getDepth() { return Math.max(0, claimed.get() - consumed.get()); }
+
+
+    /** @return the most Events ever waiting in the ring at once */
+    public long getMaxDepth() { return maxDepth; }
+
+
+    /** @return the number of times a producer found the ring full and had to wait */
+    public long getProducerStalls() { return stalls.get(); }
+
+
+    /** @return the number of Events handled so far */
+    public long getHandledCount() { return consumed.get(); }
+
+
+    public int getCapacity() { return entries.length(); }
+
+
+    /** Stops the dispatcher after it handles the Events already published. */
+    public void stop() {
+        running = false;
+        if( dispatcher == null )
+            return;
+        LockSupport.unpark(dispatcher);
+        if( isDispatcherThread() )
+            return;
+        try {
+            dispatcher.join();
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    private void dispatch() {
+        long next = consumed.get();
+        while( true ) {
+            int index = (int) (next & mask);
+            if( published.get(index) != next ) {
+                if( !running && claimed.get() == next )
+                    return;
+                if( waitStrategy == WaitStrategy.PARK ) {
+                    dispatcherParked = true;
+                    if( published.get(index) != next )
+                        waitStrategy.idle(this);
+                    dispatcherParked = false;
+                }
+                else
+                    waitStrategy.idle(this);
+                continue;
+            }
+            Event event = entries.get(index);
+            entries.lazySet(index, null);
+            long depth = claimed.get() - next;
+            if( depth > maxDepth )
+                maxDepth = depth;
+            try {
+                handler.handle(event);
+            }
+            catch( Throwable t ) {
+                log.error("Error dispatching " + event, t);
+            }
+            next++;
+            consumed.lazySet(next);
+        }
+    }
+
+
+    private static final long PARK_NANOS = 1000000;
+    private static final Logger log = LoggerFactory.getLogger(EventRing.class);
+
+    private final int mask;
+    private final AtomicReferenceArray<Event> entries;
+    private final AtomicLongArray published; // the sequence last published into each slot
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+    private final AtomicLong stalls = new AtomicLong();
+    private final WaitStrategy waitStrategy;
+    private final Handler handler;
+    private volatile Thread dispatcher;
+    private volatile boolean running = true;
+    private volatile boolean dispatcherParked;
+    private volatile long maxDepth;
+}
@@ -66,10 +66,9 @@ public class MockOrderService extends BaseOrderService {
                 }
             }
         }
-        for( Fill fill : fills ) {
+        for( Fill fill : fills )
             fill.getOrder().addFill(fill);
-            context.publish(fill);
-        }
+        context.publishAll(fills);
     }
 
 
@@ -1,8 +1,12 @@
 package org.cryptocoinpartners.module;
 
+import org.apache.commons.configuration.Configuration;
+import org.cryptocoinpartners.schema.EntityBase;
 import org.cryptocoinpartners.schema.MarketData;
 import org.cryptocoinpartners.schema.Trade;
-import org.cryptocoinpartners.util.PersistUtil;
+import org.cryptocoinpartners.util.TradeDedupIndex;
+import org.cryptocoinpartners.util.WriteBehindPersister;
+import org.joda.time.Duration;
 import org.slf4j.Logger;
 
 import javax.inject.Inject;
@@ -13,32 +17,66 @@ import javax.inject.Singleton;
  * @author Tim Olson
  */
 @Singleton
-public class SaveMarketData {
+public class SaveMarketData implements Context.DetachListener {
 
-    @When("select * from MarketData")
-    public void handleMarketData( MarketData m ) {
-        if( m instanceof Trade ) {
-            Trade trade = (Trade) m;
-            final Trade duplicate = PersistUtil.queryZeroOne(Trade.class,
-                                                      "select t from Trade t where market=?1 and remoteKey=?2",
-                                                      trade.getMarket(), trade.getRemoteKey());
-            if( duplicate == null )
-                PersistUtil.insert(trade);
-            else
-                log.warn("dropped duplicate Trade "+trade);
-        }
-        else {
-            // if not a Trade, persist unconditionally
-            try {
-                PersistUtil.insert(m);
-            }
-            catch( Throwable e ) {
-                throw new Error("Could not insert "+m,e);
+    @Inject
+    public SaveMarketData( Configuration config ) {
+        persister = new WriteBehindPersister(config.getInt("save.queue.capacity", 100000),
+                                             config.getInt("db.batch.size", 50),
+                                             config.getLong("save.flush.millis", 1000),
+                                             WriteBehindPersister.Overflow.valueOf(
+                                                     config.getString("save.overflow", "block").toUpperCase()));
+        dedupIndex = new TradeDedupIndex(config.getInt("save.dedup.keys", 10000),
+                                         Duration.standardMinutes(config.getLong("save.dedup.warm.minutes", 60)));
+        // a Trade which is not saved may be delivered again, and must not look like a duplicate then
+        persister.setLossListener(new WriteBehindPersister.LossListener() {
+            public void lost(EntityBase entity) {
+                if( entity instanceof Trade )
+                    dedupIndex.forget((Trade) entity);
             }
+        });
+        persister.start("SaveMarketData writer");
+        // write out whatever is still queued if the JVM exits without the Context being destroyed
+        shutdownHook = new Thread(new Runnable() {
+            public void run() { persister.stop(); }
+        }, "SaveMarketData shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+
+    /** writes out whatever is still queued and stops the writer thread */
+    public void beforeDetach(Context context) {
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
         }
+        catch( IllegalStateException e ) {
+            // the JVM is already shutting down, and the hook stops the persister
+        }
+        persister.stop();
     }
 
 
+    // each Market is saved in order, so a Book's parent is always inserted before the Book
+    @When(value = "select * from MarketData", partitioned = true)
+    public void handleMarketData( MarketData m ) {
+        if( m instanceof Trade && dedupIndex.isDuplicate((Trade) m) ) {
+            log.warn("dropped duplicate Trade "+m);
+            return;
+        }
+        if( !persister.persist(m) )
+            log.debug("save queue is full or stopped.  dropped "+m);
+    }
+
+
+    public WriteBehindPersister getPersister() { return persister; }
+
+
+    public TradeDedupIndex getDedupIndex() { return dedupIndex; }
+
+
     @Inject
     private Logger log;
+    private final WriteBehindPersister persister;
+    private final Thread shutdownHook;
+    private final TradeDedupIndex dedupIndex;
 }
@@ -4,14 +4,12 @@ import org.cryptocoinpartners.schema.Book;
 import org.cryptocoinpartners.schema.Market;
 import org.cryptocoinpartners.schema.Tick;
 import org.cryptocoinpartners.schema.Trade;
+import org.cryptocoinpartners.util.MarketArray;
 import org.joda.time.Instant;
 import org.slf4j.Logger;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.UUID;
 
 
 /**
@@ -28,7 +26,7 @@ public class TickWindow {
     private TickWindow( Context context )
     {
         this.context = context;
-        accumulatingTickMap = new HashMap<>();
+        accumulatingTickMap = new MarketArray<>();
     }
 
 
@@ -56,10 +54,10 @@ public class TickWindow {
 
 
     private AccumulatingTick getAccumulatingTick( Market ml ) {
-        AccumulatingTick at = accumulatingTickMap.get(ml.getId());
+        AccumulatingTick at = accumulatingTickMap.get(ml);
         if( at == null ) {
             at = new AccumulatingTick(ml);
-            accumulatingTickMap.put(ml.getId(),at);
+            accumulatingTickMap.put(ml,at);
         }
         return at;
     }
@@ -103,5 +101,5 @@ public class TickWindow {
     private Context context;
     @Inject
     private Logger log;
-    private Map<UUID,AccumulatingTick> accumulatingTickMap;
+    private MarketArray<AccumulatingTick> accumulatingTickMap;
 }
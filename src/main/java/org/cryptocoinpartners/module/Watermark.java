@@ -0,0 +1,213 @@
+package org.cryptocoinpartners.module;
+
+import org.cryptocoinpartners.schema.Event;
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+
+
+/**
+ * Puts Events from several sources back into time order.  Each source gets its own small reorder buffer.  The
+ * watermark trails the latest Event time seen from any source by the allowed lateness, and buffered Events are
+ * released in time order once the watermark passes them.  An Event which arrives older than the last released Event
+ * is too late to be put in order, so it is counted and dropped.
+ * <p/>
+ * Released Events are handed to the Releaser outside the lock, so producers never wait on Esper dispatch.  One thread
+ * at a time releases, in order.  A thread which releases Events while another is releasing, or while it is itself
+ * inside release(), leaves them to that release loop instead of waiting.
+ *
+ * @see Context#startWatermark(Duration)
+ */
+public class Watermark {
+
+    public interface Releaser {
+        /** @param time the time the Event was added with */
+        void release(Event event, Instant time);
+    }
+
+
+    public Watermark(Duration allowedLateness, Releaser releaser) {
+        this.allowedLateness = allowedLateness.getMillis();
+        this.releaser = releaser;
+    }
+
+
+    /**
+     * Buffers the Event, then releases every buffered Event the watermark has passed.
+     *
+     * @param source the feed the Event came from.  Events from one source usually arrive in order
+     * @param time the time which orders the Event, usually Event.getTime()
+     */
+    public void add(Object source, Instant time, Event event) {
+        synchronized( this ) {
+            long millis = time.getMillis();
+            if( millis < released ) {
+                lateDropped++;
+                return;
+            }
+            PriorityQueue<Entry> buffer = buffers.get(source);
+            if( buffer == null ) {
+                buffer = new PriorityQueue<>(16, entryOrder);
+                buffers.put(source, buffer);
+            }
+            buffer.add(new Entry(time, sequence++, event));
+            buffered++;
+            if( buffered > maxBuffered )
+                maxBuffered = buffered;
+            if( millis > latest )
+                latest = millis;
+            releaseUntil(latest - allowedLateness);
+        }
+        dispatchReady();
+    }
+
+
+    /**
+     * Releases every buffered Event up to the given time, regardless of lateness.  Called when the clock is moved
+     * explicitly, after which older Events are late.
+     */
+    public void advanceTo(Instant time) {
+        synchronized( this ) {
+            releaseUntil(time.getMillis());
+            if( time.getMillis() > released )
+                released = time.getMillis();
+        }
+        dispatchReady();
+    }
+
+
+    /** Releases every buffered Event.  If another thread is releasing, it publishes them instead of this one. */
+    public void flush() {
+        synchronized( this ) {
+            releaseUntil(Long.MAX_VALUE);
+        }
+        dispatchReady();
+    }
+
+
+    /** @return the time below which arriving Events are dropped as late */
+    public synchronized Instant getWatermark() {
+        if( latest == Long.MIN_VALUE )
+            return new Instant(released);
+        return new Instant(Math.max(released, latest - allowedLateness));
+    }
+
+
+    /** @return the number of Events dropped because they arrived behind the watermark */
+    public synchronized long getLateDropped() { return lateDropped; }
+
+
+    /** @return the number of Events waiting in all the buffers */
+    public synchronized int getBufferedCount() { return buffered; }
+
+
+    /** @return the number of Events from this source waiting to be released */
+    public synchronized int getBufferedCount(Object source) {
+        PriorityQueue<Entry> buffer = buffers.get(source);
+        return buffer == null ? 0 : buffer.size();
+    }
+
+
+    /** @return the most Events ever waiting in all the buffers at once */
+    public synchronized int getMaxBuffered() { return maxBuffered; }
+
+
+    public Duration getAllowedLateness() { return new Duration(allowedLateness); }
+
+
+    /** moves the buffered Events up to until onto the ready queue, in time order.  called with the lock held */
+    private void releaseUntil(long until) {
+        while( true ) {
+            PriorityQueue<Entry> oldest = null;
+            for( PriorityQueue<Entry> buffer : buffers.values() ) {
+                Entry head = buffer.peek();
+                if( head != null && head.millis <= until
+                    && (oldest == null || entryOrder.compare(head, oldest.peek()) < 0) )
+                    oldest = buffer;
+            }
+            if( oldest == null )
+                return;
+            Entry entry = oldest.poll();
+            buffered--;
+            if( entry.millis > released )
+                released = entry.millis;
+            ready.add(entry);
+        }
+    }
+
+
+    /** publishes the ready Events without holding the lock, unless some release loop is already doing it */
+    private void dispatchReady() {
+        synchronized( this ) {
+            if( releasing || ready.isEmpty() )
+                return;
+            releasing = true;
+        }
+        boolean done = false;
+        try {
+            while( true ) {
+                Entry entry;
+                synchronized( this ) {
+                    entry = ready.poll();
+                    if( entry == null ) {
+                        releasing = false;
+                        done = true;
+                        return;
+                    }
+                }
+                releaser.release(entry.event, entry.time);
+            }
+        }
+        finally {
+            if( !done ) {
+                // release() threw.  the rest stay ready for the next call
+                synchronized( this ) {
+                    releasing = false;
+                }
+            }
+        }
+    }
+
+
+    private static class Entry {
+        private Entry(Instant time, long sequence, Event event) {
+            this.time = time;
+            this.millis = time.getMillis();
+            this.sequence = sequence;
+            this.event = event;
+        }
+
+
+        private final Instant time;
+        private final long millis;
+        private final long sequence; // keeps Events with the same time in arrival order
+        private final Event event;
+    }
+
+
+    private static final Comparator<Entry> entryOrder = new Comparator<Entry>() {
+        public int compare(Entry entry, Entry entry2) {
+            if( entry.millis != entry2.millis )
+                return entry.millis < entry2.millis ? -1 : 1;
+            return entry.sequence < entry2.sequence ? -1 : entry.sequence == entry2.sequence ? 0 : 1;
+        }
+    };
+
+    private final long allowedLateness;
+    private final Releaser releaser;
+    private final Map<Object,PriorityQueue<Entry>> buffers = new HashMap<>();
+    private final Queue<Entry> ready = new ArrayDeque<>(); // released, waiting to be handed to the Releaser
+    private boolean releasing; // whether some thread is in dispatchReady()'s loop
+    private long released = Long.MIN_VALUE; // the time of the newest released Event
+    private long latest = Long.MIN_VALUE;
+    private long sequence;
+    private int buffered;
+    private int maxBuffered;
+    private long lateDropped;
+}
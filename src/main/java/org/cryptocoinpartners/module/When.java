@@ -19,4 +19,23 @@ public @interface When {
      * public @When("select priceAsBigDecimal, volumeAsBigDecimal from Tick") handleNewTick( BigDecimal price, BigDecimal withAmount ) {...}
      */
     public String value();
+
+
+    /**
+     * If true, the statement must be a plain "select * from" a MarketData type, and when the Context is partitioned
+     * the method is called on the worker thread of each event's Market instead of the publishing thread.  Events of
+     * one Market are always delivered in order, but different Markets may be delivered concurrently.
+     * @see Context#startPartitions
+     */
+    public boolean partitioned() default false;
+
+
+    /**
+     * If true, the statement must be a plain "select * from Book".  In a live Context the method is called on its own
+     * thread, and when it falls behind only the newest waiting Book of each Market is delivered; older ones are
+     * dropped and counted.  Replays still deliver every Book in order.  Use this for slow consumers only, never for
+     * services like QuoteService which other subscribers expect to have seen each Book first.
+     * @see BookCoalescer
+     */
+    public boolean coalesce() default false;
 }
@@ -55,7 +55,7 @@ public class XchangeData {
                 int queries = config.getInt(prefix + "rate.queries", 1);
                 Duration period = Duration.millis((long) (1000 * config.getDouble(prefix + "rate.period", 1))); // rate.period in seconds
                 final List listings = config.getList(prefix + "listings");
-                initExchange(helperClassName, queries, period, exchange, listings);
+                initExchange(helperClassName, queries, period, exchange, listings, config);
             }
             else {
                 log.warn("Could not find Exchange for property \"xchange." + tag + ".*\"");
@@ -79,7 +79,7 @@ public class XchangeData {
 
 
     private void initExchange( @Nullable String helperClassName, int queries, Duration per,
-                               Exchange coinTraderExchange, List listings )
+                               Exchange coinTraderExchange, List listings, Configuration config )
     {
         com.xeiam.xchange.Exchange xchangeExchange = XchangeUtil.getExchangeForMarket(coinTraderExchange);
         Helper helper = null;
@@ -114,7 +114,9 @@ public class XchangeData {
             markets.add(market);
         }
         for( final Market market : markets ) {
-            rateLimiter.execute(new FetchTradesRunnable(context, market, rateLimiter, dataService, helper));
+            KeyframePolicy keyframePolicy = KeyframePolicies.forMarket(config, market);
+            rateLimiter.execute(new FetchTradesRunnable(context, market, rateLimiter, dataService, helper,
+                                                        keyframePolicy));
         }
     }
 
@@ -126,12 +128,14 @@ public class XchangeData {
 
 
         public FetchTradesRunnable(Context context, Market market, RateLimiter rateLimiter,
-                                   PollingMarketDataService dataService, @Nullable Helper helper ) {
+                                   PollingMarketDataService dataService, @Nullable Helper helper,
+                                   KeyframePolicy keyframePolicy ) {
             this.context = context;
             this.market = market;
             this.rateLimiter = rateLimiter;
             this.dataService = dataService;
             this.helper = helper;
+            bookBuilder.setKeyframePolicy(market, keyframePolicy);
             pair = XchangeUtil.getCurrencyPairForListing(market.getListing());
             lastTradeTime = 0;
             lastTradeId = 0;
@@ -182,17 +186,19 @@ public class XchangeData {
                 if( helper != null )
                     helper.handleTrades(tradeSpec);
                 List<com.xeiam.xchange.dto.marketdata.Trade> trades = tradeSpec.getTrades();
+                List<org.cryptocoinpartners.schema.Trade> newTrades = new ArrayList<>(trades.size());
                 for( com.xeiam.xchange.dto.marketdata.Trade trade : trades ) {
                     long remoteId = Long.valueOf(trade.getId());
                     if( remoteId > lastTradeId ) {
                         Instant tradeInstant = new Instant(trade.getTimestamp());
                         org.cryptocoinpartners.schema.Trade ourTrade = new org.cryptocoinpartners.schema.Trade(market, tradeInstant, trade.getId(),
                                                    trade.getPrice(), trade.getTradableAmount());
-                        context.publish(ourTrade);
+                        newTrades.add(ourTrade);
                         lastTradeTime = tradeInstant.getMillis();
                         lastTradeId = remoteId;
                     }
                 }
+                context.publishAll(newTrades);
             }
             catch( IOException e ) {
                 log.warn("Could not get trades for " + market, e);
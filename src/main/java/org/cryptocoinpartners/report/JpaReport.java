@@ -42,7 +42,7 @@ public abstract class JpaReport implements Report {
                     return ++count < limit;
                 }
             };
-            PersistUtil.queryEach(visitor, limit, query.queryStr, query.params);
+            PersistUtil.streamEach(visitor, query.queryStr, query.params);
         }
         else {
             Visitor<Object[]> visitor = new Visitor<Object[]>() {
@@ -51,7 +51,7 @@ public abstract class JpaReport implements Report {
                     return true;
                 }
             };
-            PersistUtil.queryEach(visitor, query.queryStr, query.params);
+            PersistUtil.streamEach(visitor, query.queryStr, query.params);
         }
         String[][] rowStringTable = new String[rowStrings.size()][];
         rowStrings.toArray(rowStringTable);
@@ -1,19 +1,25 @@
 package org.cryptocoinpartners.schema;
 
+import org.cryptocoinpartners.util.MarketArray;
 import org.cryptocoinpartners.util.PersistUtil;
 import org.cryptocoinpartners.util.Visitor;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.proxy.LazyInitializer;
 import org.joda.time.Instant;
 import org.joda.time.Interval;
 
 import javax.annotation.Nullable;
 import javax.persistence.*;
-import java.io.*;
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
 import java.math.BigDecimal;
 import java.util.*;
 
 
 /**
- * Book represents a snapshot of all the limit orders for a Market.  Book has a "compact" database representation
+ * Book represents a snapshot of all the limit orders for a Market.  Book has a "compact" database representation:
+ * Books are saved as diffs against the previous Book of the same Market, except that a full Book is saved whenever
+ * the Builder's KeyframePolicy asks for a keyframe.
  *
  * @author Tim Olson
  */
@@ -22,109 +28,212 @@ import java.util.*;
 @Table(indexes = {@Index(columnList = "time"),@Index(columnList = "timeReceived")})
 public class Book extends MarketData implements Spread {
 
-    /** Books will be saved in the database as diffs against the previous Book, but a full Book will be saved if the
-     * number of parent hops to the previous full Book reaches MAX_PARENT_CHAIN_LENGTH */
-    private static final int MAX_PARENT_CHAIN_LENGTH = 20;
-
     public static void find(Interval timeInterval,Visitor<Book> visitor) {
-        PersistUtil.queryEach(Book.class, visitor, "select b from Book b where time > ?1 and time < ?2",
+        PersistUtil.streamEach(Book.class, visitor, "select b from Book b where time > ?1 and time < ?2",
                               timeInterval.getStartMillis(),timeInterval.getEndMillis());
     }
 
 
     public static void findAll(Visitor<Book> visitor) {
-        PersistUtil.queryEach(Book.class,visitor,"select b from Book b");
+        PersistUtil.streamEach(Book.class,visitor,"select b from Book b");
+    }
+
+
+    /** Forgets the resolved levels of loaded Books.  Called when the database is reset or reopened */
+    public static void clearResolvedCache() {
+        resolvedCache.clear();
+    }
+
+
+    /** Offers are created on demand from the primitive price levels.  Prefer bidPriceCount() and bidVolumeCount() */
+    @Transient
+    public List<Offer> getBids() {
+        resolveDiff();
+        if( bidOffers == null )
+            bidOffers = toOffers(bids);
+        return bidOffers;
+    }
+
+
+    /** Offers are created on demand from the primitive price levels.  Prefer askPriceCount() and askVolumeCount() */
+    @Transient
+    public List<Offer> getAsks() {
+        resolveDiff();
+        if( askOffers == null )
+            askOffers = toOffers(asks);
+        return askOffers;
+    }
+
+
+    /** Decodes the diff chain now instead of on first access, so it can be done ahead of time on another thread */
+    public void resolve() { resolveDiff(); }
+
+
+    /**
+     * Call before em.persist(this).  A parent which is managed by em, because it is saved in the same transaction, is
+     * used as is.  A parent which was committed earlier is replaced by a reference from em, so Hibernate writes the
+     * foreign key without looking the parent up.  A parent which was never saved, because it was dropped, failed to
+     * insert or was collected unsaved, would leave this diff unresolvable, so this Book is saved as a keyframe instead.
+     * This may be called again when a failed transaction is retried.
+     */
+    public void prepareToPersist(EntityManager em) {
+        if( builtParentState == null )
+            return; // a keyframe, or a Book which was loaded with its parent
+        Book built = builtParent.get();
+        if( built != null && em.contains(built) )
+            parent = built;
+        else if( builtParentState.committed )
+            parent = em.getReference(Book.class, builtParentId);
+        else {
+            // prePersist() encodes the full levels, and a retry keeps this a keyframe
+            parent = null;
+            clearBlobs();
+            builtParent = null;
+            builtParentId = null;
+            builtParentState = null;
+        }
+    }
+
+
+    /**
+     * Call once the transaction which inserted this Book has committed.  Children built against this Book may then
+     * refer to it by id, and this Book drops its encoded blobs and its parent.  Nothing is changed by a transaction
+     * which rolls back, so a failed Book may be retried or saved later as a keyframe by its children.
+     */
+    public void afterCommit() {
+        saveState.committed = true;
+        clearBlobs();
+        releaseParent();
+        builtParent = null;
+        builtParentId = null;
+        builtParentState = null;
     }
 
 
-    @Transient public List<Offer> getBids() { resolveDiff(); return bids; }
-    @Transient public List<Offer> getAsks() { resolveDiff(); return asks; }
+    /** @return the previous Book which this one still keeps reachable, or null.  for tests */
+    @Nullable Book retainedParent() {
+        Book built = builtParent == null ? null : builtParent.get();
+        if( built != null )
+            return built;
+        return parent == null || parent.isReference || parent instanceof HibernateProxy ? null : parent;
+    }
+
+
+    /** @return the number of bid price levels */
+    public int bidCount() { resolveDiff(); return bids.size(); }
+
+
+    /** @return the number of ask price levels */
+    public int askCount() { resolveDiff(); return asks.size(); }
+
+
+    /** @param index 0 is the best (highest) bid */
+    public long bidPriceCount(int index) { resolveDiff(); return bids.priceCount(index); }
+
+
+    public long bidVolumeCount(int index) { resolveDiff(); return bids.volumeCount(index); }
+
+
+    /** @param index 0 is the best (lowest) ask */
+    public long askPriceCount(int index) { resolveDiff(); return asks.priceCount(index); }
+
+
+    /** ask volumes are negative, the same as Offer.getVolumeCount() */
+    public long askVolumeCount(int index) { resolveDiff(); return asks.volumeCount(index); }
 
 
     @Transient
     public Offer getBestBid() {
-        if( getBids().isEmpty() )
+        if( bidCount() == 0 )
             return new Offer(getMarket(),getTime(),getTimeReceived(),0L,0L);
-        return getBids().get(0);
+        if( bidOffers != null )
+            return bidOffers.get(0);
+        if( bestBid == null )
+            bestBid = new Offer(getMarket(),getTime(),getTimeReceived(),bids.priceCount(0),bids.volumeCount(0));
+        return bestBid;
     }
 
 
     @Transient
     public Offer getBestAsk() {
-        if( getAsks().isEmpty() ) {
+        if( askCount() == 0 ) {
             return new Offer(getMarket(),getTime(),getTimeReceived(), Long.MAX_VALUE, 0L);
         }
-        return getAsks().get(0);
+        if( askOffers != null )
+            return askOffers.get(0);
+        if( bestAsk == null )
+            bestAsk = new Offer(getMarket(),getTime(),getTimeReceived(),asks.priceCount(0),asks.volumeCount(0));
+        return bestAsk;
     }
 
 
     @Nullable
     @Transient
     public DiscreteAmount getBidPrice() {
-        if( getBids().isEmpty() )
+        if( bidCount() == 0 )
             return new DiscreteAmount(0, getMarket().getPriceBasis());
-        return getBids().get(0).getPrice();
+        return new DiscreteAmount(bids.priceCount(0), getMarket().getPriceBasis());
     }
     
     
     @Nullable
     @Transient
     public DiscreteAmount getBidVolume() {
-        if( getBids().isEmpty() )
+        if( bidCount() == 0 )
             return new DiscreteAmount(0, getMarket().getVolumeBasis());
-        return getBids().get(0).getVolume();
+        return new DiscreteAmount(bids.volumeCount(0), getMarket().getVolumeBasis());
     }
     
     
     @Nullable
     public Double getBidPriceAsDouble() {
-        if( getBids().isEmpty() )
+        if( bidCount() == 0 )
             return 0d;
-        return getBids().get(0).getPriceAsDouble();
+        return getBidPrice().asDouble();
     }
 
 
     @Nullable
     public Double getBidVolumeAsDouble() {
-        if( getBids().isEmpty() )
+        if( bidCount() == 0 )
             return 0d;
-        return getBids().get(0).getVolumeAsDouble();
+        return getBidVolume().asDouble();
     }
 
 
     @Nullable
     @Transient
     public DiscreteAmount getAskPrice() {
-        if( getAsks().isEmpty() )
+        if( askCount() == 0 )
             return new DiscreteAmount(Long.MAX_VALUE, getMarket().getPriceBasis());
-        return getAsks().get(0).getPrice();
+        return new DiscreteAmount(asks.priceCount(0), getMarket().getPriceBasis());
     }
     
 
     @Nullable
     @Transient
     public DiscreteAmount getAskVolume() {
-        if( getAsks().isEmpty() )
+        if( askCount() == 0 )
             return new DiscreteAmount(0, getMarket().getVolumeBasis());
-        return getAsks().get(0).getVolume();
+        return new DiscreteAmount(asks.volumeCount(0), getMarket().getVolumeBasis());
     }
 
 
     /** saved to the db for query convenience */
     @Nullable
     public Double getAskPriceAsDouble() {
-        if( getAsks().isEmpty() )
+        if( askCount() == 0 )
             return Double.MAX_VALUE;
-        return getAsks().get(0).getPriceAsDouble();
+        return getAskPrice().asDouble();
     }
 
 
     /** saved to the db for query convenience */
     @Nullable
     public Double getAskVolumeAsDouble() {
-        if( getAsks().isEmpty() )
+        if( askCount() == 0 )
             return 0d;
-        return getAsks().get(0).getVolumeAsDouble();
+        return getAskVolume().asDouble();
     }
 
 
@@ -136,8 +245,8 @@ public class Book extends MarketData implements Spread {
 
     public DiffResult diff( Book previousBook ) {
         DiffResult result = new DiffResult();
-        diff( result, getBids(), previousBook.getBids() );
-        diff( result, getAsks(), previousBook.getAsks() );
+        diff( result, this, bidSide(), previousBook, previousBook.bidSide(), true );
+        diff( result, this, askSide(), previousBook, previousBook.askSide(), false );
         return result;
     }
 
@@ -158,18 +267,17 @@ public class Book extends MarketData implements Spread {
 
         public Builder addBid( BigDecimal price, BigDecimal volume ) {
             Market market = book.getMarket();
-            book.bids.add(Offer.bid(market, book.getTime(), book.getTimeReceived(),
-                                    DiscreteAmount.roundedCountForBasis(price, market.getPriceBasis()),
-                                    DiscreteAmount.roundedCountForBasis(volume, market.getVolumeBasis())));
+            book.bids.add(DiscreteAmount.roundedCountForBasis(price, market.getPriceBasis()),
+                          DiscreteAmount.roundedCountForBasis(volume, market.getVolumeBasis()));
             return this;
         }
 
 
         public Builder addAsk( BigDecimal price, BigDecimal volume ) {
             Market market = book.getMarket();
-            book.asks.add(Offer.ask(market, book.getTime(), book.getTimeReceived(),
-                                    DiscreteAmount.roundedCountForBasis(price, market.getPriceBasis()),
-                                    DiscreteAmount.roundedCountForBasis(volume, market.getVolumeBasis())));
+            // asks are stored with a negative volume, the same as Offer.ask()
+            book.asks.add(DiscreteAmount.roundedCountForBasis(price, market.getPriceBasis()),
+                          -DiscreteAmount.roundedCountForBasis(volume, market.getVolumeBasis()));
             return this;
         }
 
@@ -179,28 +287,43 @@ public class Book extends MarketData implements Spread {
             book.sortBook();
 
             // look for a Chain of Books of the same Market
-            String marketSymbol = book.getMarket().getSymbol();
-            Chain chain = chains.get(marketSymbol);
+            Market market = book.getMarket();
+            Chain chain = chains.get(market);
             if( chain == null ) {
                 // no chain exists for the Market, so create one
                 chain = new Chain();
                 chain.previousBook = book;
-                chains.put(marketSymbol,chain);
+                chains.put(market,chain);
             }
             else {
-                // a parent Book exists in the chain
-                Book parentBook;
-                if( chain.chainLength == MAX_PARENT_CHAIN_LENGTH ) {
-                    // reached max chain length.  set parent to null and reset the chain length count
-                    parentBook = null;
+                // a parent Book exists in the chain.  the diff is encoded now so the KeyframePolicy can weigh its size,
+                // and prePersist() reuses the blobs
+                Book previousBook = chain.previousBook;
+                DiffBlobs bidBlobs = diff( previousBook.bids, book.bids, true );
+                DiffBlobs askBlobs = diff( previousBook.asks, book.asks, false );
+                long diffBytes = bidBlobs.size() + askBlobs.size();
+                long keyframeBytes = BookCodec.encodedSize(book.bids) + BookCodec.encodedSize(book.asks);
+                if( getKeyframePolicy(market).isKeyframe(chain.chainLength, chain.chainDiffBytes,
+                                                               diffBytes, keyframeBytes) ) {
+                    // start a new keyframe.  set parent to null and reset the chain
+                    book.setParent(null);
                     chain.chainLength = 0;
+                    chain.chainDiffBytes = 0;
                 }
                 else {
-                    // the chain is not too long.  use the previous book in the chain as a parent
-                    parentBook = chain.previousBook;
+                    // use the previous book in the chain as a parent.  the diff is already encoded.  the parent is
+                    // held weakly, so Books which are never saved do not keep the chain back to the keyframe alive.
+                    // a pending save keeps the parent reachable through the persister's queue
+                    book.builtParent = new WeakReference<>(previousBook);
+                    book.builtParentId = previousBook.getId();
+                    book.builtParentState = previousBook.saveState;
+                    book.bidInsertionsBlob = bidBlobs.insertBlob;
+                    book.bidDeletionsBlob = bidBlobs.deleteBlob;
+                    book.askInsertionsBlob = askBlobs.insertBlob;
+                    book.askDeletionsBlob = askBlobs.deleteBlob;
                     chain.chainLength++;
+                    chain.chainDiffBytes += diffBytes;
                 }
-                book.setParent(parentBook);
                 chain.previousBook = book;
             }
 
@@ -210,50 +333,66 @@ public class Book extends MarketData implements Spread {
         }
 
 
+        /** sets the KeyframePolicy for Markets which do not have their own.  the default is KeyframePolicies.standard() */
+        public Builder setKeyframePolicy( KeyframePolicy policy ) {
+            defaultKeyframePolicy = policy;
+            return this;
+        }
+
+
+        public Builder setKeyframePolicy( Market market, KeyframePolicy policy ) {
+            keyframePolicies.put(market, policy);
+            return this;
+        }
+
+
+        private KeyframePolicy getKeyframePolicy( Market market ) {
+            KeyframePolicy policy = keyframePolicies.get(market);
+            return policy == null ? defaultKeyframePolicy : policy;
+        }
+
+
         private static class Chain {
             private int chainLength;
+            private long chainDiffBytes;
             private Book previousBook;
-            private String marketSymbol;
         }
 
         private Book book;
-        private Map<String,Chain> chains = new HashMap<>();
+        private MarketArray<Chain> chains = new MarketArray<>();
+        private KeyframePolicy defaultKeyframePolicy = KeyframePolicies.standard();
+        private MarketArray<KeyframePolicy> keyframePolicies = new MarketArray<>();
     }
 
 
     public String toString()
     {
         StringBuilder sb = new StringBuilder(getMarket().toString() + " Book at "+getTime()+" bids={");
-        boolean first = true;
-        for( Offer bid : getBids() ) {
-            if( first )
-                first = false;
-            else
-                sb.append(';');
-            sb.append(bid.getVolumeAsDouble());
-            sb.append('@');
-            sb.append(bid.getPriceAsDouble());
-        }
+        appendLevels(sb, bidSide());
         sb.append("} asks={");
-        first = true;
-        for( Offer ask : getAsks() ) {
-            if( first )
-                first = false;
-            else
+        appendLevels(sb, askSide());
+        sb.append('}');
+        return sb.toString();
+    }
+
+
+    private void appendLevels(StringBuilder sb, BookSide side) {
+        double priceBasis = getMarket().getPriceBasis();
+        double volumeBasis = getMarket().getVolumeBasis();
+        for( int i = 0; i < side.size(); i++ ) {
+            if( i > 0 )
                 sb.append(';');
-            sb.append(ask.getVolumeAsDouble());
+            sb.append(new DiscreteAmount(side.volumeCount(i), volumeBasis).asDouble());
             sb.append('@');
-            sb.append(ask.getPriceAsDouble());
+            sb.append(new DiscreteAmount(side.priceCount(i), priceBasis).asDouble());
         }
-        sb.append('}');
-        return sb.toString();
     }
 
 
     // JPA
     protected Book() { }
     // These getters and setters are for conversion in JPA
-    protected @ManyToOne Book getParent() { return parent; }
+    protected @ManyToOne(fetch = FetchType.LAZY) Book getParent() { return parent; }
     protected @Lob byte[] getBidDeletionsBlob() { return bidDeletionsBlob; }
     protected @Lob byte[] getAskDeletionsBlob() { return askDeletionsBlob; }
     protected @Lob byte[] getBidInsertionsBlob() { return bidInsertionsBlob; }
@@ -274,8 +413,8 @@ public class Book extends MarketData implements Spread {
     // this is separate from the empty JPA constructor.  it allows Book.Builder to start with a minimally initialized Book
     private static Book create() {
         Book result = new Book();
-        result.bids = new ArrayList<>();
-        result.asks = new ArrayList<>();
+        result.bids = new BookSide(INITIAL_LEVEL_CAPACITY);
+        result.asks = new BookSide(INITIAL_LEVEL_CAPACITY);
         return result;
     }
 
@@ -288,64 +427,115 @@ public class Book extends MarketData implements Spread {
             bidDeletionsBlob = null;
             askDeletionsBlob = null;
         }
-        else {
-            DiffBlobs bidBlobs = diff( parent.getBids(), getBids() );
+        else if( bidInsertionsBlob == null ) {
+            // Book.Builder normally encodes the diff already
+            Book parent = loadParent();
+            DiffBlobs bidBlobs = diff( parent.bidSide(), bidSide(), true );
             bidInsertionsBlob = bidBlobs.insertBlob;
             bidDeletionsBlob = bidBlobs.deleteBlob;
-            DiffBlobs askBlobs = diff( parent.getAsks(), getAsks() );
+            DiffBlobs askBlobs = diff( parent.askSide(), askSide(), false );
             askInsertionsBlob = askBlobs.insertBlob;
             askDeletionsBlob = askBlobs.deleteBlob;
         }
     }
 
 
-    @SuppressWarnings("ConstantConditions")
-    private boolean hasQuote(List<? extends Offer> list, Offer offer)
-    {
-        for( Offer item : list )
-        {
-            if( Long.compare(item.getPriceCount(), offer.getPriceCount()) == 0 &&
-                        Long.compare(item.getVolumeCount(), offer.getVolumeCount()) == 0  )
-                return true;
+    @PostLoad
+    private void postLoad() {
+        // the blobs are decoded lazily by resolveDiff(), and the parent is a lazy proxy, so ancestors which are found
+        // in the resolvedCache are neither fetched nor decoded
+        saveState.committed = true;
+        needToResolveDiff = true;
+    }
+
+
+    /**
+     * Walks up the parent chain to the nearest Book which is already resolved, found in the resolvedCache, or is a
+     * keyframe, then applies each diff in order back down to this Book.  The cache is checked with the parent's id
+     * before a lazy parent is fetched, so a hit ends the walk without touching the database.  This is done iteratively
+     * instead of recursively through getBids() on the parent.
+     */
+    private void resolveDiff() {
+        if( !needToResolveDiff || resolveFromCache() )
+            return;
+        ArrayDeque<Book> unresolved = new ArrayDeque<>();
+        BookSide[] base = null; // the levels of the nearest resolved ancestor, or null above a keyframe
+        for( Book book = this; book != null; book = book.loadParent() ) {
+            unresolved.push(book);
+            if( book.parent == null )
+                break;
+            base = resolvedSides(book.parent);
+            if( base != null )
+                break;
         }
-        return false;
+        while( !unresolved.isEmpty() )
+            base = unresolved.pop().applyDiff(base);
     }
 
 
-    @PostPersist
-    private void postPersist() {
+    private boolean resolveFromCache() {
+        BookSide[] snapshot = resolvedCache.get(getId());
+        if( snapshot == null )
+            return false;
+        bids = snapshot[0];
+        asks = snapshot[1];
         clearBlobs();
+        needToResolveDiff = false;
+        return true;
     }
 
 
-    @PostLoad
-    private void postLoad() {
-        bids = convertDatabaseBlobToQuoteList(bidInsertionsBlob);
-        asks = convertDatabaseBlobToQuoteList(askInsertionsBlob);
-        if( parent != null )
-            needToResolveDiff = true;
+    /** @return the levels of the Book if they are known without fetching it, otherwise null */
+    private static BookSide[] resolvedSides(Book book) {
+        if( !(book instanceof HibernateProxy) && !book.needToResolveDiff )
+            return new BookSide[] {book.bids, book.asks};
+        // getId() does not initialize a proxy
+        return resolvedCache.get(book.getId());
     }
 
-    // if this is implemented as a @PostLoad, the transitive dependencies for the parent's parent are not resolved
-    private void resolveDiff() {
-        if( !needToResolveDiff )
-            return;
-        // add any non-deleted entries from the parent
-        List<Integer> bidDeletionIndexes = convertDatabaseBlobToIndexList(bidDeletionsBlob); // these should be already sorted
-        List<Offer> parentBids = parent.getBids();
-        for( int i = 0; i < parentBids.size(); i++ ) {
-            if( !bidDeletionIndexes.contains(i) )
-                bids.add(parentBids.get(i));
+
+    /**
+     * @return the parent, fetching it first if it is still a lazy proxy.  A replayed Book is detached from the session
+     * which loaded it, so its parent is then fetched by id in a session of its own
+     */
+    private Book loadParent() {
+        if( parent instanceof HibernateProxy ) {
+            LazyInitializer lazy = ((HibernateProxy) parent).getHibernateLazyInitializer();
+            if( !lazy.isUninitialized() || (lazy.getSession() != null && !lazy.getSession().isClosed()) )
+                parent = (Book) lazy.getImplementation();
+            else {
+                final Serializable id = lazy.getIdentifier();
+                parent = PersistUtil.withSession(new PersistUtil.UnitOfWork<Book>() {
+                    public Book run(EntityManager em) { return em.find(Book.class, id); }
+                });
+            }
+        }
+        return parent;
+    }
+
+
+    /**
+     * @param parentSides the resolved levels of the parent, or null for a keyframe
+     * @return the resolved levels of this Book
+     */
+    private BookSide[] applyDiff(@Nullable BookSide[] parentSides) {
+        BookSide bidInsertions = convertDatabaseBlobToBookSide(bidInsertionsBlob);
+        BookSide askInsertions = convertDatabaseBlobToBookSide(askInsertionsBlob);
+        if( parentSides == null ) {
+            bids = bidInsertions;
+            asks = askInsertions;
         }
-        List<Integer> askDeletionIndexes = convertDatabaseBlobToIndexList(askDeletionsBlob); // these should be already sorted
-        List<Offer> parentAsks = parent.getAsks();
-        for( int i = 0; i < parentAsks.size(); i++ ) {
-            if( !askDeletionIndexes.contains(i) )
-                asks.add(parentAsks.get(i));
+        else {
+            BitSet bidDeletions = BookCodec.decodeIndexSet(bidDeletionsBlob, parentSides[0].size());
+            BitSet askDeletions = BookCodec.decodeIndexSet(askDeletionsBlob, parentSides[1].size());
+            bids = BookSide.merge(parentSides[0], bidDeletions, bidInsertions, true);
+            asks = BookSide.merge(parentSides[1], askDeletions, askInsertions, false);
         }
-        sortBook();
+        BookSide[] result = new BookSide[] {bids, asks};
+        resolvedCache.put(getId(), result);
         clearBlobs();
         needToResolveDiff = false;
+        return result;
     }
 
 
@@ -357,146 +547,125 @@ public class Book extends MarketData implements Spread {
     }
 
 
-    @SuppressWarnings("ConstantConditions")
-    private static <T extends Offer> byte[] convertQuotesToDatabaseBlob(List<T> quotes) {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        try {
-            ObjectOutputStream out = new ObjectOutputStream(bos);
-            out.writeInt(quotes.size());
-            for( T quote : quotes ) {
-                out.writeLong(quote.getPriceCount());
-                out.writeLong(quote.getVolumeCount());
-            }
-            out.close();
-            bos.close();
-        }
-        catch( IOException e ) {
-            throw new Error(e);
-        }
-        return bos.toByteArray();
+    /**
+     * Replaces the parent with a reference holding only its id, which is all JPA needs for the foreign key.  Once this
+     * Book is saved, holding the parent object would only keep the parent's levels, Offers and its own parent alive.
+     */
+    private void releaseParent() {
+        // getId() does not initialize a proxy
+        if( parent != null && !parent.isReference )
+            parent = reference(parent.getId());
     }
 
 
-    private List<Offer> convertDatabaseBlobToQuoteList(byte[] bytes) {
-        List<Offer> result = new ArrayList<>();
-        ByteArrayInputStream bin = new ByteArrayInputStream(bytes);
-        //noinspection EmptyCatchBlock
-        try {
-            ObjectInputStream in = new ObjectInputStream(bin);
-            int size = in.readInt();
-            for( int i = 0; i < size; i++ ) {
-                long price = in.readLong();
-                long volume = in.readLong();
-                result.add(new Offer(getMarket(),getTime(),getTimeReceived(),price,volume));
-            }
-            in.close();
-            bin.close();
-        }
-        catch( IOException e ) {
-            throw new Error(e);
-        }
+    private static Book reference(UUID id) {
+        Book result = new Book();
+        result.setId(id);
+        result.isReference = true;
         return result;
     }
 
 
-    @SuppressWarnings("ConstantConditions")
-    private static byte[] convertIndexesToDatabaseBlob(List<Integer> indexes) {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        try {
-            ObjectOutputStream out = new ObjectOutputStream(bos);
-            out.writeInt(indexes.size());
-            for( Integer index : indexes )
-                out.writeInt(index);
-            out.close();
-            bos.close();
-        }
-        catch( IOException e ) {
-            throw new Error(e);
-        }
-        return bos.toByteArray();
+    private static byte[] convertQuotesToDatabaseBlob(BookSide quotes) {
+        return BookCodec.encodeLevels(quotes);
     }
 
 
-    private static List<Integer> convertDatabaseBlobToIndexList(byte[] bytes) {
-        List<Integer> result = new ArrayList<>();
-        ByteArrayInputStream bin = new ByteArrayInputStream(bytes);
-        try {
-            ObjectInputStream in = new ObjectInputStream(bin);
-            int size = in.readInt();
-            for( int i = 0; i < size; i++ )
-                result.add(in.readInt());
-            in.close();
-            bin.close();
-        }
-        catch( IOException e ) {
-            throw new Error(e);
-        }
-        return result;
+    private static BookSide convertDatabaseBlobToBookSide(byte[] bytes) {
+        return BookCodec.decodeLevels(bytes);
     }
 
 
     /** this implements the public diff() */
-    private void diff( DiffResult result, List<? extends Offer> childQuotes, List<? extends Offer> parentQuotes ) {
-        for( Offer childOffer : childQuotes ) {
-            if( !hasQuote(parentQuotes, childOffer) )
-                result.newOffers.add(childOffer);
-        }
-        for( Offer parentOffer : parentQuotes ) {
-            if( !hasQuote(childQuotes, parentOffer) )
-                result.removedOffers.add(parentOffer);
-        }
+    private static void diff( DiffResult result, Book child, BookSide childQuotes, Book parent, BookSide parentQuotes,
+                              boolean descending ) {
+        BookSide.Diff diff = BookSide.diff(parentQuotes, childQuotes, descending);
+        for( int i = 0; i < diff.getInsertionCount(); i++ )
+            result.newOffers.add(child.toOffer(childQuotes, diff.insertion(i)));
+        for( int i = 0; i < diff.getDeletionCount(); i++ )
+            result.removedOffers.add(parent.toOffer(parentQuotes, diff.deletion(i)));
     }
 
 
     private static class DiffBlobs {
         byte[] insertBlob;
         byte[] deleteBlob;
+        int size() { return insertBlob.length + deleteBlob.length; }
     }
 
 
     /** this is separate from the public diff for efficiency */
-    private DiffBlobs diff(List<? extends Offer> parentQuotes, List<? extends Offer> childQuotes) {
-        List<Offer> insertions = new ArrayList<>();
-        for( Offer childOffer : childQuotes ) {
-            if( !hasQuote(parentQuotes, childOffer) )
-                insertions.add(childOffer);
-        }
-
-        List<Integer> deletionIndexes = new ArrayList<>();
-        for( int i = 0; i < parentQuotes.size(); i++ ) {
-            Offer offer = parentQuotes.get(i);
-            if( !hasQuote(childQuotes, offer) )
-                deletionIndexes.add(i);
+    private static DiffBlobs diff(BookSide parentQuotes, BookSide childQuotes, boolean descending) {
+        BookSide.Diff diff = BookSide.diff(parentQuotes, childQuotes, descending);
+        BookSide insertions = new BookSide(diff.getInsertionCount());
+        for( int i = 0; i < diff.getInsertionCount(); i++ ) {
+            int index = diff.insertion(i);
+            insertions.add(childQuotes.priceCount(index), childQuotes.volumeCount(index));
         }
         DiffBlobs result = new DiffBlobs();
         result.insertBlob = convertQuotesToDatabaseBlob(insertions);
-        result.deleteBlob = convertIndexesToDatabaseBlob(deletionIndexes);
+        result.deleteBlob = BookCodec.encodeIndexes(diff.getDeletions(), diff.getDeletionCount());
         return result;
     }
 
 
     private void sortBook() {
-        Collections.sort(bids, new Comparator<Offer>() {
-            @SuppressWarnings("ConstantConditions")
-            public int compare(Offer bid, Offer bid2) {
-                return - bid.getPriceCount().compareTo(bid2.getPriceCount()); // high to low
-            }
-        });
-        Collections.sort(asks, new Comparator<Offer>() {
-            @SuppressWarnings("ConstantConditions")
-            public int compare(Offer ask, Offer ask2) {
-                return ask.getPriceCount().compareTo(ask2.getPriceCount()); // low to high
-            }
-        });
+        bids.sortDescending(); // high to low
+        asks.sortAscending(); // low to high
     }
 
 
-    private List<Offer> bids;
-    private List<Offer> asks;
+    private BookSide bidSide() { resolveDiff(); return bids; }
+    private BookSide askSide() { resolveDiff(); return asks; }
+
+
+    private Offer toOffer(BookSide side, int index) {
+        return new Offer(getMarket(),getTime(),getTimeReceived(),side.priceCount(index),side.volumeCount(index));
+    }
+
+
+    private List<Offer> toOffers(BookSide side) {
+        List<Offer> result = new ArrayList<>(side.size());
+        for( int i = 0; i < side.size(); i++ )
+            result.add(toOffer(side, i));
+        return Collections.unmodifiableList(result);
+    }
+
+
+    private static final int INITIAL_LEVEL_CAPACITY = 64;
+    private static final int RESOLVED_CACHE_SIZE = 1000;
+
+    /** Whether a Book has been committed.  Children share their parent's instance instead of holding the parent. */
+    private static class SaveState {
+        private volatile boolean committed;
+    }
+
+
+    /** Fully resolved bid and ask sides of loaded Books, keyed by Book id.  Consecutive Books in a replay share most
+     * of their ancestors, so each diff in a chain only needs to be applied once. */
+    private static final Map<UUID,BookSide[]> resolvedCache = Collections.synchronizedMap(
+            new LinkedHashMap<UUID,BookSide[]>(RESOLVED_CACHE_SIZE, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<UUID,BookSide[]> eldest) {
+                    return size() > RESOLVED_CACHE_SIZE;
+                }
+            });
+
+    private BookSide bids;
+    private BookSide asks;
+    private List<Offer> bidOffers; // created on demand for legacy callers of getBids()
+    private List<Offer> askOffers; // created on demand for legacy callers of getAsks()
+    private Offer bestBid;
+    private Offer bestAsk;
     private Book parent; // if this is not null, then the Book is persisted as a diff against the parent Book
     private byte[] bidDeletionsBlob;
     private byte[] askDeletionsBlob;
     private byte[] bidInsertionsBlob;
     private byte[] askInsertionsBlob;
     private boolean needToResolveDiff;
+    private boolean isReference; // true for the id-only parent left by releaseParent()
+    private final SaveState saveState = new SaveState();
+    // the previous Book from Book.Builder, until this Book is saved.  prepareToPersist() turns it into the parent
+    private WeakReference<Book> builtParent;
+    private UUID builtParentId;
+    private SaveState builtParentState;
 }
\ No newline at end of file
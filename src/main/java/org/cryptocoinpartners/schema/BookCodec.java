@@ -0,0 +1,271 @@
+package org.cryptocoinpartners.schema;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.Arrays;
+import java.util.BitSet;
+
+
+/**
+ * Encodes the bid and ask blobs of a Book.  Each blob starts with a version byte.
+ * <p/>
+ * Levels are written as a varint count followed by, for each level, the zig-zag varint of the price delta from the
+ * previous level and the zig-zag varint of the volume.  Deletion indexes are written as a varint count of runs
+ * followed by, for each run of consecutive indexes, the varint gap from the end of the previous run and the varint
+ * run length.
+ * <p/>
+ * Blobs written before the codec existed are ObjectOutputStream data with fixed-width fields.  They begin with the
+ * serialization stream magic and are still decoded.
+ * <p/>
+ * A blob with an unknown version, or one which is truncated or malformed, makes the decode methods throw
+ * IllegalArgumentException.
+ */
+class BookCodec {
+
+    static final byte VERSION = 1;
+
+
+    static byte[] encodeLevels(BookSide side) {
+        Output out = new Output(1 + 5 + side.size() * 6);
+        out.writeByte(VERSION);
+        out.writeVarint(side.size());
+        long previousPrice = 0;
+        for( int i = 0; i < side.size(); i++ ) {
+            long price = side.priceCount(i);
+            out.writeVarint(zigZag(price - previousPrice));
+            out.writeVarint(zigZag(side.volumeCount(i)));
+            previousPrice = price;
+        }
+        return out.toByteArray();
+    }
+
+
+    /** @return the length of encodeLevels(side) without encoding it */
+    static int encodedSize(BookSide side) {
+        int result = 1 + varintSize(side.size());
+        long previousPrice = 0;
+        for( int i = 0; i < side.size(); i++ ) {
+            long price = side.priceCount(i);
+            result += varintSize(zigZag(price - previousPrice)) + varintSize(zigZag(side.volumeCount(i)));
+            previousPrice = price;
+        }
+        return result;
+    }
+
+
+    static BookSide decodeLevels(byte[] bytes) {
+        if( isLegacy(bytes) )
+            return decodeLegacyLevels(bytes);
+        Input in = new Input(bytes);
+        int size = in.readCount(2);
+        BookSide result = new BookSide(size);
+        long price = 0;
+        for( int i = 0; i < size; i++ ) {
+            price += unZigZag(in.readVarint());
+            result.add(price, unZigZag(in.readVarint()));
+        }
+        return result;
+    }
+
+
+    /** @param indexes ascending indexes, of which the first count are used */
+    static byte[] encodeIndexes(int[] indexes, int count) {
+        int runs = 0;
+        for( int i = 0; i < count; i++ ) {
+            if( i == 0 || indexes[i] != indexes[i-1] + 1 )
+                runs++;
+        }
+        Output out = new Output(1 + 5 + runs * 4);
+        out.writeByte(VERSION);
+        out.writeVarint(runs);
+        int previousEnd = 0;
+        for( int i = 0; i < count; ) {
+            int start = indexes[i];
+            int end = start + 1;
+            i++;
+            while( i < count && indexes[i] == end ) {
+                end++;
+                i++;
+            }
+            out.writeVarint(start - previousEnd);
+            out.writeVarint(end - start);
+            previousEnd = end;
+        }
+        return out.toByteArray();
+    }
+
+
+    /**
+     * @param parentSize the number of levels in the parent side.  Every index must be below it, which also bounds what
+     * a corrupt blob can make the BitSet allocate
+     * @return the deleted indexes as a BitSet, which is cheaper to probe than an index list
+     */
+    static BitSet decodeIndexSet(byte[] bytes, int parentSize) {
+        if( isLegacy(bytes) ) {
+            BitSet result = new BitSet();
+            for( int index : decodeLegacyIndexes(bytes) ) {
+                if( index >= parentSize )
+                    throw new IllegalArgumentException("Book blob index " + index + " is past the parent size " + parentSize);
+                result.set(index);
+            }
+            return result;
+        }
+        Input in = new Input(bytes);
+        int runs = in.readCount(2);
+        BitSet result = new BitSet();
+        long previousEnd = 0;
+        for( int r = 0; r < runs; r++ ) {
+            long start = previousEnd + in.readInt();
+            long end = start + in.readInt();
+            if( end > parentSize )
+                throw new IllegalArgumentException("Book blob index run ends past the parent size " + parentSize);
+            result.set((int) start, (int) end);
+            previousEnd = end;
+        }
+        return result;
+    }
+
+
+    private static boolean isLegacy(byte[] bytes) {
+        return bytes.length >= 2 && bytes[0] == STREAM_MAGIC_0 && bytes[1] == STREAM_MAGIC_1;
+    }
+
+
+    private static BookSide decodeLegacyLevels(byte[] bytes) {
+        try {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+            int size = legacySize(in.readInt(), bytes, 16);
+            BookSide result = new BookSide(size);
+            for( int i = 0; i < size; i++ ) {
+                long price = in.readLong();
+                long volume = in.readLong();
+                result.add(price, volume);
+            }
+            in.close();
+            return result;
+        }
+        catch( IOException e ) {
+            throw new IllegalArgumentException("Could not decode legacy Book blob", e);
+        }
+    }
+
+
+    private static int[] decodeLegacyIndexes(byte[] bytes) {
+        try {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+            int size = legacySize(in.readInt(), bytes, 4);
+            int[] result = new int[size];
+            for( int i = 0; i < size; i++ ) {
+                result[i] = in.readInt();
+                if( result[i] < 0 )
+                    throw new IllegalArgumentException("Malformed legacy Book blob");
+            }
+            in.close();
+            return result;
+        }
+        catch( IOException e ) {
+            throw new IllegalArgumentException("Could not decode legacy Book blob", e);
+        }
+    }
+
+
+    private static int legacySize(int size, byte[] bytes, int bytesPerEntry) {
+        if( size < 0 || size > bytes.length / bytesPerEntry )
+            throw new IllegalArgumentException("Truncated legacy Book blob");
+        return size;
+    }
+
+
+    private static int varintSize(long value) {
+        int result = 1;
+        while( (value & ~0x7FL) != 0 ) {
+            value >>>= 7;
+            result++;
+        }
+        return result;
+    }
+
+
+    private static long zigZag(long n) { return (n << 1) ^ (n >> 63); }
+
+
+    private static long unZigZag(long n) { return (n >>> 1) ^ -(n & 1); }
+
+
+    private static class Output {
+        private Output(int capacity) { buf = new byte[Math.max(capacity, 16)]; }
+
+
+        private void writeByte(int b) {
+            if( size == buf.length )
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            buf[size++] = (byte) b;
+        }
+
+
+        private void writeVarint(long value) {
+            while( (value & ~0x7FL) != 0 ) {
+                writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            writeByte((int) value);
+        }
+
+
+        private byte[] toByteArray() { return Arrays.copyOf(buf, size); }
+
+
+        private byte[] buf;
+        private int size;
+    }
+
+
+    private static class Input {
+        private Input(byte[] bytes) {
+            if( bytes.length == 0 || bytes[0] != VERSION )
+                throw new IllegalArgumentException("Unknown Book blob version " + (bytes.length == 0 ? "(empty)" : bytes[0]));
+            this.bytes = bytes;
+            this.pos = 1;
+        }
+
+
+        private long readVarint() {
+            long result = 0;
+            for( int shift = 0; shift < 64; shift += 7 ) {
+                if( pos >= bytes.length )
+                    throw new IllegalArgumentException("Truncated Book blob");
+                byte b = bytes[pos++];
+                result |= (long) (b & 0x7F) << shift;
+                if( (b & 0x80) == 0 )
+                    return result;
+            }
+            throw new IllegalArgumentException("Malformed varint in Book blob");
+        }
+
+
+        private int readInt() {
+            long value = readVarint();
+            if( value < 0 || value > Integer.MAX_VALUE )
+                throw new IllegalArgumentException("Malformed varint in Book blob");
+            return (int) value;
+        }
+
+
+        /** reads a count of entries which each take at least minBytes, so a corrupt count cannot allocate much */
+        private int readCount(int minBytes) {
+            int count = readInt();
+            if( count > (bytes.length - pos) / minBytes )
+                throw new IllegalArgumentException("Truncated Book blob");
+            return count;
+        }
+
+
+        private final byte[] bytes;
+        private int pos;
+    }
+
+
+    private static final byte STREAM_MAGIC_0 = (byte) 0xAC;
+    private static final byte STREAM_MAGIC_1 = (byte) 0xED;
+}
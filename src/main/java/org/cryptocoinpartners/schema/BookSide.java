@@ -0,0 +1,237 @@
+package org.cryptocoinpartners.schema;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+
+/**
+ * One side of a Book, stored as parallel arrays of priceCounts and volumeCounts sorted by price.  Bids are kept
+ * high-to-low and asks low-to-high.  Ask volumes are negative, the same as in Offer.
+ * <p/>
+ * A BookSide is only mutated while its Book is being built or decoded.  After that it is treated as immutable, so
+ * resolved Books may share the same instance.
+ */
+public class BookSide {
+
+    public BookSide(int capacity) {
+        prices = new long[capacity];
+        volumes = new long[capacity];
+    }
+
+
+    public int size() { return size; }
+
+
+    public boolean isEmpty() { return size == 0; }
+
+
+    public long priceCount(int index) {
+        if( index >= size )
+            throw new IndexOutOfBoundsException("index "+index+" >= size "+size);
+        return prices[index];
+    }
+
+
+    public long volumeCount(int index) {
+        if( index >= size )
+            throw new IndexOutOfBoundsException("index "+index+" >= size "+size);
+        return volumes[index];
+    }
+
+
+    public void add(long priceCount, long volumeCount) {
+        if( size == prices.length ) {
+            int capacity = Math.max(8, size * 2);
+            prices = Arrays.copyOf(prices, capacity);
+            volumes = Arrays.copyOf(volumes, capacity);
+        }
+        prices[size] = priceCount;
+        volumes[size] = volumeCount;
+        size++;
+    }
+
+
+    /** sorts by price, high to low.  levels with the same price keep their insertion order */
+    public void sortDescending() { sort(true); }
+
+
+    /** sorts by price, low to high.  levels with the same price keep their insertion order */
+    public void sortAscending() { sort(false); }
+
+
+    /**
+     * The levels which differ between a parent BookSide and a child BookSide.  Levels match when both their
+     * priceCount and volumeCount are equal.
+     */
+    public static class Diff {
+        /** indexes into the child of levels which are not in the parent, ascending */
+        public int[] getInsertions() { return Arrays.copyOf(insertions, insertionCount); }
+        /** indexes into the parent of levels which are not in the child, ascending */
+        public int[] getDeletions() { return Arrays.copyOf(deletions, deletionCount); }
+        public int getInsertionCount() { return insertionCount; }
+        public int getDeletionCount() { return deletionCount; }
+        public int insertion(int i) { return insertions[i]; }
+        public int deletion(int i) { return deletions[i]; }
+
+
+        private Diff(int maxInsertions, int maxDeletions) {
+            insertions = new int[maxInsertions];
+            deletions = new int[maxDeletions];
+        }
+
+
+        private void insert(int childIndex) { insertions[insertionCount++] = childIndex; }
+        private void delete(int parentIndex) { deletions[deletionCount++] = parentIndex; }
+
+
+        private final int[] insertions;
+        private final int[] deletions;
+        private int insertionCount;
+        private int deletionCount;
+    }
+
+
+    /**
+     * Computes the Diff between two sides sorted in the same direction with a single merge pass, which is linear in
+     * the number of levels.  Levels sharing the same price are compared in order, and those runs are almost always a
+     * single level.
+     * @param descending true if both sides are sorted high-to-low (bids), false for low-to-high (asks)
+     */
+    public static Diff diff(BookSide parent, BookSide child, boolean descending) {
+        final int parentSize = parent.size;
+        final int childSize = child.size;
+        final long[] parentPrices = parent.prices;
+        final long[] childPrices = child.prices;
+        Diff result = new Diff(childSize, parentSize);
+        int i = 0, j = 0;
+        while( i < parentSize && j < childSize ) {
+            long parentPrice = parentPrices[i];
+            long childPrice = childPrices[j];
+            if( parentPrice == childPrice ) {
+                int parentEnd = i + 1;
+                while( parentEnd < parentSize && parentPrices[parentEnd] == parentPrice )
+                    parentEnd++;
+                int childEnd = j + 1;
+                while( childEnd < childSize && childPrices[childEnd] == childPrice )
+                    childEnd++;
+                diffRun(result, parent, i, parentEnd, child, j, childEnd);
+                i = parentEnd;
+                j = childEnd;
+            }
+            else if( descending ? parentPrice > childPrice : parentPrice < childPrice )
+                result.delete(i++); // the parent's level comes first, so the child does not have it
+            else
+                result.insert(j++); // the child's level comes first, so the parent does not have it
+        }
+        while( i < parentSize )
+            result.delete(i++);
+        while( j < childSize )
+            result.insert(j++);
+        return result;
+    }
+
+
+    /**
+     * Matches levels with the same price by volume.  Only the levels the parent and child runs share as a common
+     * prefix are kept; the rest of the parent run is deleted and the rest of the child run inserted.  merge() puts
+     * kept parent levels ahead of insertions at the same price, so this rebuilds the child's order exactly.
+     */
+    private static void diffRun(Diff result, BookSide parent, int parentStart, int parentEnd,
+                                BookSide child, int childStart, int childEnd) {
+        int i = parentStart, j = childStart;
+        while( i < parentEnd && j < childEnd && parent.volumes[i] == child.volumes[j] ) {
+            i++;
+            j++;
+        }
+        for( ; j < childEnd; j++ )
+            result.insert(j);
+        for( ; i < parentEnd; i++ )
+            result.delete(i);
+    }
+
+
+    /**
+     * Applies a diff to a parent side in one merge pass.  Both the parent and the insertions must already be sorted in
+     * the given direction.  At equal prices the parent's levels come first, matching the runs diff() produces.
+     * @param deleted indexes into the parent which are not carried into the result
+     */
+    public static BookSide merge(BookSide parent, BitSet deleted, BookSide insertions, boolean descending) {
+        BookSide result = new BookSide(parent.size - deleted.cardinality() + insertions.size);
+        int i = deleted.nextClearBit(0), j = 0;
+        while( i < parent.size && j < insertions.size ) {
+            if( inOrder(parent.prices[i], insertions.prices[j], descending) ) {
+                result.add(parent.prices[i], parent.volumes[i]);
+                i = deleted.nextClearBit(i + 1);
+            }
+            else {
+                result.add(insertions.prices[j], insertions.volumes[j]);
+                j++;
+            }
+        }
+        for( ; i < parent.size; i = deleted.nextClearBit(i + 1) )
+            result.add(parent.prices[i], parent.volumes[i]);
+        for( ; j < insertions.size; j++ )
+            result.add(insertions.prices[j], insertions.volumes[j]);
+        return result;
+    }
+
+
+    private void sort(boolean descending) {
+        if( isSorted(descending) )
+            return; // exchanges almost always send levels in order already
+        long[] priceScratch = new long[size];
+        long[] volumeScratch = new long[size];
+        // bottom-up merge sort on the parallel arrays.  it is stable like the Collections.sort() it replaces
+        long[] srcPrices = prices, srcVolumes = volumes;
+        long[] dstPrices = priceScratch, dstVolumes = volumeScratch;
+        for( int width = 1; width < size; width *= 2 ) {
+            for( int lo = 0; lo < size; lo += 2 * width ) {
+                int mid = Math.min(lo + width, size);
+                int hi = Math.min(lo + 2 * width, size);
+                int i = lo, j = mid, k = lo;
+                while( i < mid && j < hi ) {
+                    if( inOrder(srcPrices[i], srcPrices[j], descending) ) {
+                        dstPrices[k] = srcPrices[i];
+                        dstVolumes[k++] = srcVolumes[i++];
+                    }
+                    else {
+                        dstPrices[k] = srcPrices[j];
+                        dstVolumes[k++] = srcVolumes[j++];
+                    }
+                }
+                while( i < mid ) {
+                    dstPrices[k] = srcPrices[i];
+                    dstVolumes[k++] = srcVolumes[i++];
+                }
+                while( j < hi ) {
+                    dstPrices[k] = srcPrices[j];
+                    dstVolumes[k++] = srcVolumes[j++];
+                }
+            }
+            long[] swap = srcPrices; srcPrices = dstPrices; dstPrices = swap;
+            swap = srcVolumes; srcVolumes = dstVolumes; dstVolumes = swap;
+        }
+        prices = srcPrices;
+        volumes = srcVolumes;
+    }
+
+
+    private boolean isSorted(boolean descending) {
+        for( int i = 1; i < size; i++ ) {
+            if( !inOrder(prices[i-1], prices[i], descending) )
+                return false;
+        }
+        return true;
+    }
+
+
+    /** @return true if a may come before b.  equal prices are in order, which keeps the sort stable */
+    private static boolean inOrder(long a, long b, boolean descending) {
+        return descending ? a >= b : a <= b;
+    }
+
+
+    private long[] prices;
+    private long[] volumes;
+    private int size;
+}
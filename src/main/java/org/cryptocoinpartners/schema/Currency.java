@@ -18,7 +18,12 @@ public class Currency extends Asset {
 
 
     public static Currency forSymbol( String symbol ) {
-        return PersistUtil.queryOne(Currency.class, "select c from Currency c where symbol=?1", symbol );
+        Currency found = ReferenceData.currency(symbol);
+        if( found == null ) {
+            found = PersistUtil.queryOne(Currency.class, "select c from Currency c where symbol=?1", symbol );
+            ReferenceData.add(found);
+        }
+        return found;
     }
 
 
@@ -41,6 +46,7 @@ public class Currency extends Asset {
         catch( NoResultException e ) {
             final Currency currency = new Currency(isFiat, symbol, basis);
             PersistUtil.insert(currency);
+            ReferenceData.add(currency);
             return currency;
         }
     }
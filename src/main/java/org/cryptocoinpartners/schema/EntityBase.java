@@ -35,6 +35,13 @@ public abstract class EntityBase {
     }
 
 
+    /** sets how new entities get their ids.  the default is IdGenerators.timeOrdered() */
+    public static void setIdGenerator(IdGenerator generator) { idGenerator = generator; }
+
+
+    public static IdGenerator getIdGenerator() { return idGenerator; }
+
+
     // JPA
     protected EntityBase() {}
     protected void setId(UUID id) { this.id = id; }
@@ -42,9 +49,11 @@ public abstract class EntityBase {
 
     private void ensureId() {
         if( id == null )
-            id = UUID.randomUUID();
+            id = idGenerator.next();
     }
 
 
+    private static volatile IdGenerator idGenerator = IdGenerators.timeOrdered();
+
     private UUID id;
 }
@@ -20,6 +20,7 @@ public class Exchange extends EntityBase {
         if( found == null ) {
             found = new Exchange(symbol);
             PersistUtil.insert(found);
+            ReferenceData.add(found);
         }
         return found;
     }
@@ -27,7 +28,13 @@ public class Exchange extends EntityBase {
 
     /** returns null if the symbol does not represent an existing exchange */
     public static Exchange forSymbol(String symbol) {
-        return PersistUtil.queryZeroOne(Exchange.class,"select e from Exchange e where symbol=?1",symbol);
+        Exchange found = ReferenceData.exchange(symbol);
+        if( found == null ) {
+            found = PersistUtil.queryZeroOne(Exchange.class,"select e from Exchange e where symbol=?1",symbol);
+            if( found != null )
+                ReferenceData.add(found);
+        }
+        return found;
     }
 
 
@@ -0,0 +1,16 @@
+package org.cryptocoinpartners.schema;
+
+import java.util.UUID;
+
+
+/**
+ * Makes the ids of new entities.  EntityBase asks for an id the first time one is needed, which for events is usually
+ * on the publishing thread, so next() must be cheap and thread-safe.
+ *
+ * @see IdGenerators
+ * @see EntityBase#setIdGenerator(IdGenerator)
+ */
+public interface IdGenerator {
+
+    UUID next();
+}
@@ -0,0 +1,98 @@
+package org.cryptocoinpartners.schema;
+
+import org.apache.commons.configuration.Configuration;
+
+import java.security.SecureRandom;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * The IdGenerator implementations and their configuration:
+ * <pre>
+ * db.id.generator=time|random
+ * </pre>
+ */
+public class IdGenerators {
+
+    /** the default: UUIDs which sort by creation time, made without SecureRandom */
+    public static IdGenerator timeOrdered() { return TIME_ORDERED; }
+
+
+    /** the original generator: UUID.randomUUID(), which draws from SecureRandom for every id */
+    public static IdGenerator random() { return RANDOM; }
+
+
+    public static IdGenerator forConfig(Configuration config) {
+        String generator = config.getString("db.id.generator", "time");
+        if( "time".equalsIgnoreCase(generator) )
+            return timeOrdered();
+        if( "random".equalsIgnoreCase(generator) )
+            return random();
+        throw new IllegalArgumentException("Unknown db.id.generator \"" + generator + "\"");
+    }
+
+
+    /**
+     * Makes version 7 style UUIDs: the high 48 bits are the time in milliseconds, followed by a 26 bit counter and a
+     * 48 bit node.  Ids from one thread always increase, and ids from all threads increase with the clock, so new rows
+     * are appended to the end of a clustered primary key index instead of being scattered through it.  Each thread
+     * has its own counter and node, so no locking is needed.  The node is a random number drawn once per process
+     * combined with a number for the thread, which keeps ids from separate processes apart.
+     */
+    public static class TimeOrdered implements IdGenerator {
+
+        public UUID next() { return sequences.get().next(); }
+
+
+        public String toString() { return "TimeOrdered"; }
+
+
+        private static class Sequence {
+            private Sequence(long node) { this.node = node; }
+
+
+            private UUID next() {
+                long now = System.currentTimeMillis();
+                if( now > millis ) {
+                    millis = now;
+                    counter = 0;
+                }
+                else if( ++counter > MAX_COUNTER ) {
+                    // the counter ran out, or the clock went backwards.  borrow the next millisecond to stay ordered
+                    millis++;
+                    counter = 0;
+                }
+                long mostSig = millis << 16 | VERSION | counter >>> 14;
+                long leastSig = VARIANT | (counter & 0x3FFF) << 48 | node;
+                return new UUID(mostSig, leastSig);
+            }
+
+
+            private final long node;
+            private long millis;
+            private long counter;
+        }
+
+
+        private static final long VERSION = 0x7000L;
+        private static final long VARIANT = 0x8000000000000000L;
+        private static final long MAX_COUNTER = (1L << 26) - 1;
+
+        private final long processNode = (new SecureRandom().nextLong() & 0xFFFFFFL) << 24;
+        private final AtomicInteger threads = new AtomicInteger();
+        private final ThreadLocal<Sequence> sequences = new ThreadLocal<Sequence>() {
+            protected Sequence initialValue() {
+                return new Sequence(processNode | (threads.getAndIncrement() & 0xFFFFFFL));
+            }
+        };
+    }
+
+
+    private static final IdGenerator TIME_ORDERED = new TimeOrdered();
+
+    private static final IdGenerator RANDOM = new IdGenerator() {
+        public UUID next() { return UUID.randomUUID(); }
+        public String toString() { return "Random"; }
+    };
+}
@@ -0,0 +1,92 @@
+package org.cryptocoinpartners.schema;
+
+import org.apache.commons.configuration.Configuration;
+
+
+/**
+ * The KeyframePolicy implementations and their configuration.  Policies are chosen per Market with these properties,
+ * where the Market-specific keys override the general ones:
+ * <pre>
+ * book.keyframe.policy=depth|size
+ * book.keyframe.depth=20
+ * book.keyframe.fraction=0.5
+ * book.keyframe.BITFINEX:BTC.USD.policy=size
+ * </pre>
+ */
+public class KeyframePolicies {
+
+    public static final int DEFAULT_MAX_DEPTH = 20;
+    public static final double DEFAULT_FRACTION = 0.5;
+
+
+    /** the original fixed policy: a keyframe every DEFAULT_MAX_DEPTH hops */
+    public static KeyframePolicy standard() { return new MaxDepth(DEFAULT_MAX_DEPTH); }
+
+
+    public static KeyframePolicy forMarket(Configuration config, Market market) {
+        String prefix = "book.keyframe.";
+        String marketPrefix = prefix + market.getSymbol() + '.';
+        String policy = config.getString(marketPrefix + "policy", config.getString(prefix + "policy", "depth"));
+        int depth = config.getInt(marketPrefix + "depth", config.getInt(prefix + "depth", DEFAULT_MAX_DEPTH));
+        if( "depth".equalsIgnoreCase(policy) )
+            return new MaxDepth(depth);
+        if( "size".equalsIgnoreCase(policy) ) {
+            double fraction = config.getDouble(marketPrefix + "fraction",
+                                               config.getDouble(prefix + "fraction", DEFAULT_FRACTION));
+            return new DiffSize(fraction, depth);
+        }
+        throw new IllegalArgumentException("Unknown book.keyframe.policy \"" + policy + "\" for " + market);
+    }
+
+
+    /**
+     * Starts a keyframe when the chain reaches a maximum number of diffs, which bounds the number of hops needed to
+     * resolve any one Book loaded at random.
+     */
+    public static class MaxDepth implements KeyframePolicy {
+        public MaxDepth(int maxDepth) {
+            if( maxDepth < 0 )
+                throw new IllegalArgumentException("maxDepth must not be negative: " + maxDepth);
+            this.maxDepth = maxDepth;
+        }
+
+
+        public boolean isKeyframe(int chainLength, long chainDiffBytes, long diffBytes, long keyframeBytes) {
+            return chainLength >= maxDepth;
+        }
+
+
+        public String toString() { return "MaxDepth{" + maxDepth + '}'; }
+
+
+        private final int maxDepth;
+    }
+
+
+    /**
+     * Starts a keyframe when the diffs since the last keyframe, including the next one, add up to more than a
+     * fraction of a full Book.  Volatile markets get frequent keyframes and quiet markets get long chains.  The
+     * depth is still capped at maxDepth.
+     */
+    public static class DiffSize implements KeyframePolicy {
+        public DiffSize(double fraction, int maxDepth) {
+            if( fraction <= 0 )
+                throw new IllegalArgumentException("fraction must be positive: " + fraction);
+            this.fraction = fraction;
+            this.maxDepth = new MaxDepth(maxDepth);
+        }
+
+
+        public boolean isKeyframe(int chainLength, long chainDiffBytes, long diffBytes, long keyframeBytes) {
+            return chainDiffBytes + diffBytes > fraction * keyframeBytes
+                   || maxDepth.isKeyframe(chainLength, chainDiffBytes, diffBytes, keyframeBytes);
+        }
+
+
+        public String toString() { return "DiffSize{" + fraction + ", " + maxDepth + '}'; }
+
+
+        private final double fraction;
+        private final MaxDepth maxDepth;
+    }
+}
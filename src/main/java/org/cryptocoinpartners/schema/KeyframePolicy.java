@@ -0,0 +1,20 @@
+package org.cryptocoinpartners.schema;
+
+
+/**
+ * Decides when Book.Builder starts a new keyframe, which is a Book saved in full instead of as a diff against the
+ * previous Book of the same Market.
+ *
+ * @see KeyframePolicies
+ */
+public interface KeyframePolicy {
+
+    /**
+     * @param chainLength the number of diffs already saved since the last keyframe
+     * @param chainDiffBytes the encoded size of those diffs
+     * @param diffBytes the encoded size of the next Book if it is saved as a diff
+     * @param keyframeBytes the encoded size of the next Book if it is saved in full
+     * @return true to save the next Book as a keyframe
+     */
+    boolean isKeyframe(int chainLength, long chainDiffBytes, long diffBytes, long keyframeBytes);
+}
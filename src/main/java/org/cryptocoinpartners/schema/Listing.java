@@ -27,21 +27,24 @@ public class Listing extends EntityBase
 
     /** will create the listing if it doesn't exist */
     public static Listing forPair( Asset base, Asset quote ) {
+        Listing listing = ReferenceData.listing(base, quote);
+        if( listing != null )
+            return listing;
         try {
-            Listing listing = PersistUtil.queryZeroOne(Listing.class,
-                                                       "select a from Listing a where base=?1 and quote=?2",
-                                                       base, quote);
+            listing = PersistUtil.queryZeroOne(Listing.class,
+                                               "select a from Listing a where base=?1 and quote=?2",
+                                               base, quote);
             if( listing == null ) {
                 listing = new Listing(base,quote);
                 PersistUtil.insert(listing);
             }
-            return listing;
         }
         catch( NoResultException e ) {
-            final Listing listing = new Listing(base, quote);
+            listing = new Listing(base, quote);
             PersistUtil.insert(listing);
-            return listing;
         }
+        ReferenceData.add(listing);
+        return listing;
     }
 
 
@@ -49,7 +52,11 @@ public class Listing extends EntityBase
 
 
     @Transient
-    public String getSymbol() { return base.getSymbol()+'.'+quote.getSymbol(); }
+    public String getSymbol() {
+        if( symbol == null )
+            symbol = base.getSymbol()+'.'+quote.getSymbol();
+        return symbol;
+    }
 
 
     public static List<String> allSymbols() {
@@ -63,12 +70,13 @@ public class Listing extends EntityBase
 
     // JPA
     protected Listing() { }
-    protected void setBase(Asset base) { this.base = base; }
-    protected void setQuote(Asset quote) { this.quote = quote; }
+    protected void setBase(Asset base) { this.base = base; symbol = null; }
+    protected void setQuote(Asset quote) { this.quote = quote; symbol = null; }
 
 
     protected Asset base;
     protected Asset quote;
+    private String symbol;
 
 
     private Listing( Asset base, Asset quote ) {
@@ -79,6 +87,9 @@ public class Listing extends EntityBase
     
     public static Listing forSymbol( String symbol )
     {
+        Listing found = ReferenceData.listing(symbol);
+        if( found != null )
+            return found;
         symbol = symbol.toUpperCase();
         final int dot = symbol.indexOf('.');
         if( dot == -1 )
@@ -8,6 +8,9 @@ import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
@@ -19,9 +22,11 @@ import java.util.List;
 public class Market extends EntityBase
 {
 
+    /** @return every Market in the database, including ones created by other processes since this one started */
     public static Collection<Market> findAll()
     {
-        return PersistUtil.queryList(Market.class, "select m from Market m");
+        ReferenceData.refreshMarkets();
+        return ReferenceData.markets();
     }
 
 
@@ -31,16 +36,27 @@ public class Market extends EntityBase
     }
 
 
-    public static Market findOrCreate(Exchange exchange, Listing listing, double quoteBasis, double volumeBasis) {
+    public static Market findOrCreate(final Exchange exchange, final Listing listing, final double quoteBasis,
+                                      final double volumeBasis) {
+        Market found = ReferenceData.market(exchange, listing);
+        if( found != null )
+            return found;
         final String queryStr = "select m from Market m where exchange=?1 and listing=?2";
-        try {
-            return PersistUtil.queryOne(Market.class, queryStr, exchange, listing);
-        }
-        catch( NoResultException e ) {
-            final Market ml = new Market(exchange, listing, quoteBasis, volumeBasis);
-            PersistUtil.insert(ml);
-            return ml;
-        }
+        // the lookup and the insert share one session and transaction
+        found = PersistUtil.withSession(new PersistUtil.UnitOfWork<Market>() {
+            public Market run(EntityManager em) {
+                try {
+                    return PersistUtil.queryOne(Market.class, queryStr, exchange, listing);
+                }
+                catch( NoResultException e ) {
+                    final Market ml = new Market(exchange, listing, quoteBasis, volumeBasis);
+                    PersistUtil.insert(ml);
+                    return ml;
+                }
+            }
+        });
+        ReferenceData.add(found);
+        return found;
     }
 
 
@@ -90,16 +106,52 @@ public class Market extends EntityBase
 
 
     @Transient
-    public String getSymbol() { return exchange.toString()+':'+listing.toString(); }
+    public String getSymbol() {
+        if( symbol == null )
+            symbol = exchange.toString()+':'+listing.toString();
+        return symbol;
+    }
+
+
+    /**
+     * @return a small int which identifies this Market in this process only.  Indexes are handed out densely from
+     * zero, and every instance of a Market gets the same index, so per-Market state can be kept in a MarketArray.
+     */
+    @Transient
+    public int getIndex() {
+        if( index < 0 ) {
+            Integer assigned = indexById.get(getId());
+            if( assigned == null ) {
+                synchronized( indexById ) {
+                    assigned = indexById.get(getId());
+                    if( assigned == null ) {
+                        assigned = indexById.size();
+                        indexById.put(getId(), assigned);
+                    }
+                }
+            }
+            index = assigned;
+        }
+        return index;
+    }
+
+
+    /** @return one more than the largest Market index handed out so far */
+    public static int getIndexCount() { return indexById.size(); }
 
 
     public String toString() { return getSymbol(); }
 
 
     public static Market forSymbol(String marketSymbol) {
-        for( Market market : findAll() ) {
-            if( market.getSymbol().equalsIgnoreCase(marketSymbol) )
+        Market found = ReferenceData.market(marketSymbol);
+        if( found != null )
+            return found;
+        for( Market market : PersistUtil.queryList(Market.class, "select m from Market m") ) {
+            if( market.getSymbol().equalsIgnoreCase(marketSymbol) ) {
+                ReferenceData.add(market);
                 return market;
+            }
         }
         return null;
     }
@@ -146,8 +198,8 @@ public class Market extends EntityBase
 
     // JPA
     protected Market() {}
-    protected void setExchange(Exchange exchange) { this.exchange = exchange; }
-    protected void setListing( Listing listing ) { this.listing = listing; }
+    protected void setExchange(Exchange exchange) { this.exchange = exchange; symbol = null; }
+    protected void setListing( Listing listing ) { this.listing = listing; symbol = null; }
     protected void setActive( boolean active ) { this.active = active; }
     protected void setPriceBasis(double quoteBasis) { this.priceBasis = quoteBasis; }
     protected void setVolumeBasis(double volumeBasis) { this.volumeBasis = volumeBasis; }
@@ -168,4 +220,8 @@ public class Market extends EntityBase
     private double volumeBasis;
     private boolean active;
     private MarketAmountBuilder marketAmountBuilder;
+    private String symbol;
+    private int index = -1;
+
+    private static final Map<UUID,Integer> indexById = new ConcurrentHashMap<>();
 }
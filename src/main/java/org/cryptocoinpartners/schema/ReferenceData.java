@@ -0,0 +1,203 @@
+package org.cryptocoinpartners.schema;
+
+import org.cryptocoinpartners.util.PersistUtil;
+
+import javax.persistence.EntityManager;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * Keeps every Exchange, Currency, Listing and Market in memory, indexed by symbol and by id, so the forSymbol()
+ * lookups do not query the database.  Everything is loaded on the first lookup, and the findOrCreate methods add what
+ * they create.  A symbol which is not found here is still looked up in the database, in case another process created
+ * it, and Market.findAll() picks up the Markets other processes created.  Symbols are matched ignoring case, and a
+ * lookup with an upper-case symbol allocates nothing.
+ */
+public class ReferenceData {
+
+    public static Exchange exchange(String symbol) { return get(exchanges, symbol); }
+
+
+    public static Currency currency(String symbol) { return get(currencies, symbol); }
+
+
+    public static Listing listing(String symbol) { return get(listings, symbol); }
+
+
+    public static Listing listing(Asset base, Asset quote) { return get(listingsByPair, base, quote); }
+
+
+    public static Market market(String symbol) { return get(markets, symbol); }
+
+
+    public static Market market(Exchange exchange, Listing listing) { return get(marketsByPair, exchange, listing); }
+
+
+    public static Collection<Market> markets() {
+        ensureLoaded();
+        return Collections.unmodifiableCollection(markets.values());
+    }
+
+
+    /**
+     * Adds the Markets which another process created since the reference data was loaded, along with their new
+     * Exchanges, Listings and Currencies.  Markets already known keep their instances.  This queries the database, so
+     * the lookups never call it; Market.findAll() does.
+     */
+    public static void refreshMarkets() {
+        ensureLoaded();
+        synchronized( ReferenceData.class ) {
+            PersistUtil.withSession(new PersistUtil.UnitOfWork<Void>() {
+                public Void run(EntityManager em) {
+                    for( Market market : em.createQuery("select m from Market m", Market.class).getResultList() ) {
+                        if( byId.containsKey(market.getId()) )
+                            continue;
+                        if( !byId.containsKey(market.getExchange().getId()) )
+                            add(market.getExchange());
+                        Listing listing = market.getListing();
+                        if( !byId.containsKey(listing.getId()) ) {
+                            addIfCurrency(listing.getBase());
+                            addIfCurrency(listing.getQuote());
+                            add(listing);
+                        }
+                        add(market);
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+
+
+    /** @return the reference entity with this id, or null if there is none of the given type */
+    public static <T extends EntityBase> T forId(Class<T> type, UUID id) {
+        ensureLoaded();
+        EntityBase entity = byId.get(id);
+        return type.isInstance(entity) ? type.cast(entity) : null;
+    }
+
+
+    /** Forgets everything, so the next lookup loads from the database again.  Called when the database is reset. */
+    public static synchronized void invalidate() {
+        loaded = false;
+        exchanges.clear();
+        currencies.clear();
+        listings.clear();
+        listingsByPair.clear();
+        markets.clear();
+        marketsByPair.clear();
+        byId.clear();
+    }
+
+
+    static void add(Exchange exchange) {
+        exchanges.put(key(exchange.getSymbol()), exchange);
+        byId.put(exchange.getId(), exchange);
+    }
+
+
+    static void add(Currency currency) {
+        currencies.put(key(currency.getSymbol()), currency);
+        byId.put(currency.getId(), currency);
+    }
+
+
+    static void add(Listing listing) {
+        listings.put(key(listing.getSymbol()), listing);
+        put(listingsByPair, listing.getBase(), listing.getQuote(), listing);
+        byId.put(listing.getId(), listing);
+    }
+
+
+    static void add(Market market) {
+        market.getIndex(); // loaded Markets get the low indexes
+        markets.put(key(market.getSymbol()), market);
+        put(marketsByPair, market.getExchange(), market.getListing(), market);
+        byId.put(market.getId(), market);
+    }
+
+
+    private static void addIfCurrency(Asset asset) {
+        if( asset instanceof Currency && !byId.containsKey(asset.getId()) )
+            add((Currency) asset);
+    }
+
+
+    /**
+     * PersistUtil.init() runs before the lock is taken.  The first init() calls invalidate() and then creates the
+     * Currencies and Exchanges singletons, which look themselves up and so load everything through this method.  A
+     * later init() which resets the database also calls invalidate(), and since that takes the same lock, it either
+     * waits for a load in progress to finish and then clears it, or runs first so the load reads the new database.
+     */
+    private static void ensureLoaded() {
+        if( loaded )
+            return;
+        PersistUtil.init();
+        synchronized( ReferenceData.class ) {
+            if( loaded )
+                return;
+            // one session, so a Market shares its Exchange and Listing instances with the maps
+            PersistUtil.withSession(new PersistUtil.UnitOfWork<Void>() {
+                public Void run(EntityManager em) {
+                    for( Exchange exchange : em.createQuery("select e from Exchange e", Exchange.class).getResultList() )
+                        add(exchange);
+                    for( Currency currency : em.createQuery("select c from Currency c", Currency.class).getResultList() )
+                        add(currency);
+                    for( Listing listing : em.createQuery("select l from Listing l", Listing.class).getResultList() )
+                        add(listing);
+                    for( Market market : em.createQuery("select m from Market m", Market.class).getResultList() )
+                        add(market);
+                    return null;
+                }
+            });
+            loaded = true;
+        }
+    }
+
+
+    private static <T> T get(ConcurrentMap<String,T> map, String symbol) {
+        ensureLoaded();
+        T found = map.get(symbol);
+        return found != null ? found : map.get(key(symbol));
+    }
+
+
+    private static <T> T get(ConcurrentMap<EntityBase,ConcurrentMap<EntityBase,T>> map, EntityBase first,
+                             EntityBase second) {
+        ensureLoaded();
+        ConcurrentMap<EntityBase,T> inner = map.get(first);
+        return inner == null ? null : inner.get(second);
+    }
+
+
+    private static <T> void put(ConcurrentMap<EntityBase,ConcurrentMap<EntityBase,T>> map, EntityBase first,
+                                EntityBase second, T value) {
+        ConcurrentMap<EntityBase,T> inner = map.get(first);
+        if( inner == null ) {
+            ConcurrentMap<EntityBase,T> created = new ConcurrentHashMap<>();
+            inner = map.putIfAbsent(first, created);
+            if( inner == null )
+                inner = created;
+        }
+        inner.put(second, value);
+    }
+
+
+    private static String key(String symbol) { return symbol.toUpperCase(); }
+
+
+    private static volatile boolean loaded;
+    private static final ConcurrentMap<String,Exchange> exchanges = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String,Currency> currencies = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String,Listing> listings = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<EntityBase,ConcurrentMap<EntityBase,Listing>> listingsByPair
+            = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String,Market> markets = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<EntityBase,ConcurrentMap<EntityBase,Market>> marketsByPair
+            = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<UUID,EntityBase> byId = new ConcurrentHashMap<>();
+}
@@ -19,7 +19,7 @@ import java.math.BigDecimal;
  * @author Tim Olson
  */
 @Entity
-@Table(indexes = {@Index(columnList = "time"),@Index(columnList = "timeReceived"),@Index(columnList = "market_id,remoteKey")})
+@Table(indexes = {@Index(columnList = "time"),@Index(columnList = "timeReceived"),@Index(columnList = "market_id,remoteKey", unique = true)})
 public class Trade extends PriceData {
 
     public static Trade fromDoubles( Market market, Instant time, @Nullable String remoteKey,
@@ -50,13 +50,13 @@ public class Trade extends PriceData {
 
 
     public static void find(Interval timeInterval,Visitor<Trade> visitor) {
-        PersistUtil.queryEach(Trade.class,visitor,"select t from Trade t where time > ?1 and time < ?2",
+        PersistUtil.streamEach(Trade.class,visitor,"select t from Trade t where time > ?1 and time < ?2",
                               timeInterval.getStartMillis(), timeInterval.getEndMillis());
     }
 
 
     public static void forAll(Visitor<Trade> visitor) {
-        PersistUtil.queryEach(Trade.class,visitor,"select t from Trade t");
+        PersistUtil.streamEach(Trade.class,visitor,"select t from Trade t");
     }
 
 
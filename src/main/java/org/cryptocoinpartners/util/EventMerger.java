@@ -0,0 +1,88 @@
+package org.cryptocoinpartners.util;
+
+import org.cryptocoinpartners.schema.RemoteEvent;
+
+import javax.annotation.Nullable;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+
+/**
+ * Merges Cursors which are each ordered by time into one stream of RemoteEvents in time order.  Only the next Event of
+ * each Cursor is held in memory.  Events with the same time come out in the order their Cursors were added.
+ *
+ * @see Replay
+ */
+public class EventMerger implements AutoCloseable {
+
+    /** @param orderByTimeReceived whether the Cursors are ordered by timeReceived instead of time */
+    public EventMerger(boolean orderByTimeReceived) {
+        this.orderByTimeReceived = orderByTimeReceived;
+    }
+
+
+    public void add(PersistUtil.Cursor<? extends RemoteEvent> cursor) {
+        Head head = new Head(cursor, sources++);
+        if( head.advance() )
+            heads.add(head);
+    }
+
+
+    /** @return the oldest Event not yet returned, or null once every Cursor has run out */
+    public @Nullable RemoteEvent next() {
+        Head head = heads.poll();
+        if( head == null )
+            return null;
+        RemoteEvent event = head.event;
+        if( head.advance() )
+            heads.add(head);
+        return event;
+    }
+
+
+    /** @return the number of Cursors which still have Events */
+    public int getOpenCount() { return heads.size(); }
+
+
+    public void close() {
+        for( Head head : heads )
+            head.cursor.close();
+        heads.clear();
+    }
+
+
+    private class Head {
+        private Head(PersistUtil.Cursor<? extends RemoteEvent> cursor, int source) {
+            this.cursor = cursor;
+            this.source = source;
+        }
+
+
+        private boolean advance() {
+            event = cursor.next();
+            if( event == null )
+                return false;
+            time = (orderByTimeReceived ? event.getTimeReceived() : event.getTime()).getMillis();
+            return true;
+        }
+
+
+        private final PersistUtil.Cursor<? extends RemoteEvent> cursor;
+        private final int source;
+        private RemoteEvent event;
+        private long time;
+    }
+
+
+    private static final Comparator<Head> headOrder = new Comparator<Head>() {
+        public int compare(Head head, Head head2) {
+            if( head.time != head2.time )
+                return head.time < head2.time ? -1 : 1;
+            return head.source < head2.source ? -1 : head.source == head2.source ? 0 : 1;
+        }
+    };
+
+    private final boolean orderByTimeReceived;
+    private final PriorityQueue<Head> heads = new PriorityQueue<>(4, headOrder);
+    private int sources;
+}
@@ -0,0 +1,148 @@
+package org.cryptocoinpartners.util;
+
+import org.cryptocoinpartners.schema.Book;
+import org.cryptocoinpartners.schema.RemoteEvent;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+
+/**
+ * Reads batches of Events ahead of the consumer on a background thread.  The producer pulls Events from an
+ * EventMerger, which runs the queries and hydrates the entities, and decodes the diff chain of each Book.  It then
+ * queues the batch for the consumer, staying at most depth batches ahead.  The database and the decoding work while
+ * the consumer publishes earlier batches, instead of each waiting on the other.  Batches keep the merged time order.
+ *
+ * @see Replay
+ */
+public class EventPrefetcher implements AutoCloseable {
+
+    public EventPrefetcher(EventMerger events, int batchSize, int depth) {
+        this.events = events;
+        this.batchSize = batchSize;
+        this.batches = new ArrayBlockingQueue<>(depth);
+    }
+
+
+    public void start(String threadName) {
+        producer = new Thread(new Runnable() {
+            public void run() { produce(); }
+        }, threadName);
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+
+    /**
+     * Waits for the next batch.
+     *
+     * @return the next batch in time order, or null after the last one
+     * @throws RuntimeException if the producer failed
+     */
+    public @Nullable List<RemoteEvent> nextBatch() {
+        if( finished )
+            return null;
+        List<RemoteEvent> batch;
+        long start = System.nanoTime();
+        try {
+            batch = batches.take();
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for replay events", e);
+        }
+        finally {
+            waitNanos += System.nanoTime() - start;
+        }
+        if( batch == END ) {
+            finished = true;
+            if( failure != null )
+                throw new RuntimeException("Could not read replay events", failure);
+            return null;
+        }
+        return batch;
+    }
+
+
+    /** Stops the producer if it is still running and closes the EventMerger. */
+    public void close() {
+        cancelled = true;
+        if( producer == null ) {
+            events.close();
+            return;
+        }
+        producer.interrupt();
+        try {
+            producer.join();
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /** @return the time the producer spent reading and decoding, in milliseconds */
+    public long getProducerBusyMillis() { return busyNanos / 1000000; }
+
+
+    /** @return the time the consumer spent waiting for batches, in milliseconds */
+    public long getConsumerWaitMillis() { return waitNanos / 1000000; }
+
+
+    public long getEventCount() { return eventCount; }
+
+
+    private void produce() {
+        try {
+            long start = System.nanoTime();
+            List<RemoteEvent> batch = new ArrayList<>(batchSize);
+            for( RemoteEvent event = events.next(); event != null && !cancelled; event = events.next() ) {
+                if( event instanceof Book )
+                    ((Book) event).resolve();
+                batch.add(event);
+                eventCount++;
+                if( batch.size() == batchSize ) {
+                    busyNanos += System.nanoTime() - start;
+                    batches.put(batch);
+                    start = System.nanoTime();
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            busyNanos += System.nanoTime() - start;
+            if( !batch.isEmpty() )
+                batches.put(batch);
+        }
+        catch( InterruptedException e ) {
+            return; // close() was called, so nobody is waiting for END
+        }
+        catch( Throwable t ) {
+            failure = t;
+        }
+        finally {
+            events.close();
+        }
+        try {
+            batches.put(END);
+        }
+        catch( InterruptedException e ) {
+            // close() was called
+        }
+    }
+
+
+    private static final List<RemoteEvent> END = new ArrayList<>(0); // compared by identity
+
+    private final EventMerger events;
+    private final int batchSize;
+    private final BlockingQueue<List<RemoteEvent>> batches;
+    private volatile Thread producer;
+    private volatile boolean cancelled;
+    private volatile Throwable failure;
+    private volatile long busyNanos; // written only by the producer
+    private volatile long eventCount;
+    private long waitNanos; // used only by the consumer
+    private boolean finished;
+}
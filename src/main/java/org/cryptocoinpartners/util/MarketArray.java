@@ -0,0 +1,71 @@
+package org.cryptocoinpartners.util;
+
+import org.cryptocoinpartners.schema.Market;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * Holds one value per Market in arrays indexed by Market.getIndex(), for per-Market state which is read or written on
+ * every event.  A lookup costs two array reads instead of hashing a symbol String.  The arrays are allocated in pages
+ * which never move, so a put() is never lost to a concurrent resize, and get() may be called from any thread.
+ */
+public class MarketArray<V> {
+
+    public V get(Market market) {
+        int index = market.getIndex();
+        AtomicReferenceArray<V> page = pages.get(index >>> PAGE_BITS);
+        return page == null ? null : page.get(index & PAGE_MASK);
+    }
+
+
+    public void put(Market market, V value) {
+        int index = market.getIndex();
+        page(index >>> PAGE_BITS).set(index & PAGE_MASK, value);
+    }
+
+
+    public void clear() {
+        for( int p = 0; p < pages.length(); p++ )
+            pages.set(p, null);
+    }
+
+
+    /** @return the values of all the Markets which have one, in Market index order */
+    public List<V> values() {
+        List<V> result = new ArrayList<>();
+        for( int p = 0; p < pages.length(); p++ ) {
+            AtomicReferenceArray<V> page = pages.get(p);
+            if( page == null )
+                continue;
+            for( int i = 0; i < PAGE_SIZE; i++ ) {
+                V value = page.get(i);
+                if( value != null )
+                    result.add(value);
+            }
+        }
+        return result;
+    }
+
+
+    private AtomicReferenceArray<V> page(int p) {
+        if( p >= MAX_PAGES )
+            throw new IllegalStateException("MarketArray holds at most " + MAX_PAGES * PAGE_SIZE + " Markets");
+        AtomicReferenceArray<V> page = pages.get(p);
+        if( page == null ) {
+            pages.compareAndSet(p, null, new AtomicReferenceArray<V>(PAGE_SIZE));
+            page = pages.get(p);
+        }
+        return page;
+    }
+
+
+    private static final int PAGE_BITS = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int MAX_PAGES = 4096;
+
+    private final AtomicReferenceArray<AtomicReferenceArray<V>> pages = new AtomicReferenceArray<>(MAX_PAGES);
+}
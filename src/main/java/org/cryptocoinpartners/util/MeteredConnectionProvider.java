@@ -0,0 +1,131 @@
+package org.cryptocoinpartners.util;
+
+import org.hibernate.c3p0.internal.C3P0ConnectionProvider;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.service.UnknownUnwrapTypeException;
+import org.hibernate.service.spi.Configurable;
+import org.hibernate.service.spi.ServiceRegistryAwareService;
+import org.hibernate.service.spi.ServiceRegistryImplementor;
+import org.hibernate.service.spi.Stoppable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Hands out connections from the c3p0 pool and measures it: how long callers wait to check out a connection, and how
+ * many connections are checked out at once.  PersistUtil installs this as hibernate.connection.provider_class; the
+ * pool itself is configured from the db.pool.* properties.  The totals are logged when the pool stops, which is when
+ * PersistUtil shuts down or resets the database, and then start again from zero.
+ */
+public class MeteredConnectionProvider implements ConnectionProvider, Configurable, Stoppable,
+                                                  ServiceRegistryAwareService {
+
+    public MeteredConnectionProvider() {
+        pool = new C3P0ConnectionProvider();
+    }
+
+
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        Connection connection = pool.getConnection();
+        waitNanos.addAndGet(System.nanoTime() - start);
+        checkouts.incrementAndGet();
+        int count = active.incrementAndGet();
+        int max;
+        while( count > (max = maxActive.get()) && !maxActive.compareAndSet(max, count) ) { }
+        return connection;
+    }
+
+
+    public void closeConnection(Connection connection) throws SQLException {
+        active.decrementAndGet();
+        pool.closeConnection(connection);
+    }
+
+
+    public boolean supportsAggressiveRelease() { return pool.supportsAggressiveRelease(); }
+
+
+    @SuppressWarnings("rawtypes") // Configurable takes a raw Map
+    public void configure(Map configurationValues) {
+        pool.configure(configurationValues);
+    }
+
+
+    public void injectServices(ServiceRegistryImplementor serviceRegistry) {
+        pool.injectServices(serviceRegistry);
+    }
+
+
+    public void stop() {
+        pool.stop();
+        log.info(getSummary());
+        checkouts.set(0);
+        waitNanos.set(0);
+        maxActive.set(active.get());
+    }
+
+
+    @SuppressWarnings("rawtypes") // Wrapped takes a raw Class
+    public boolean isUnwrappableAs(Class unwrapType) {
+        return unwrapType.isInstance(this) || pool.isUnwrappableAs(unwrapType);
+    }
+
+
+    @SuppressWarnings("unchecked")
+    public <T> T unwrap(Class<T> unwrapType) {
+        if( unwrapType.isInstance(this) )
+            return (T) this;
+        if( pool.isUnwrappableAs(unwrapType) )
+            return pool.unwrap(unwrapType);
+        throw new UnknownUnwrapTypeException(unwrapType);
+    }
+
+
+    /** @return the number of connections checked out of the pool right now */
+    public static int getActiveConnections() { return active.get(); }
+
+
+    /** @return the most connections ever checked out at once */
+    public static int getMaxActiveConnections() { return maxActive.get(); }
+
+
+    public static long getCheckoutCount() { return checkouts.get(); }
+
+
+    /** @return the total time spent waiting to check out connections, in milliseconds */
+    public static long getTotalWaitMillis() { return waitNanos.get() / 1000000; }
+
+
+    /** @return the average time spent waiting for a connection, in milliseconds */
+    public static double getAverageWaitMillis() {
+        long count = checkouts.get();
+        return count == 0 ? 0 : waitNanos.get() / 1e6 / count;
+    }
+
+
+    public static String getSummary() {
+        return "connection pool: " + getCheckoutCount() + " checkouts, "
+               + String.format("%.2f", getAverageWaitMillis()) + " ms average wait, " + getTotalWaitMillis()
+               + " ms total wait, " + getMaxActiveConnections() + " most connections in use at once";
+    }
+
+
+    private static Logger log = LoggerFactory.getLogger("org.cryptocoinpartners.persist");
+
+    // there is one EntityManagerFactory, so one pool, per JVM
+    private static final AtomicInteger active = new AtomicInteger();
+    private static final AtomicInteger maxActive = new AtomicInteger();
+    private static final AtomicLong checkouts = new AtomicLong();
+    private static final AtomicLong waitNanos = new AtomicLong();
+
+    private static final long serialVersionUID = 1L;
+
+    private final C3P0ConnectionProvider pool;
+}
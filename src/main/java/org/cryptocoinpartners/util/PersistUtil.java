@@ -1,8 +1,14 @@
 package org.cryptocoinpartners.util;
 
+import org.cryptocoinpartners.schema.Book;
 import org.cryptocoinpartners.schema.EntityBase;
 import org.cryptocoinpartners.schema.Currencies;
 import org.cryptocoinpartners.schema.Exchanges;
+import org.cryptocoinpartners.schema.IdGenerators;
+import org.cryptocoinpartners.schema.ReferenceData;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,15 +25,28 @@ public class PersistUtil {
 
 
     public static void insert(EntityBase... entities) {
+        EntityManager current = currentSession.get();
+        if( current != null ) {
+            // withSession() commits these with the rest of its work
+            for( EntityBase entity : entities ) {
+                prepareToPersist(current, entity);
+                current.persist(entity);
+            }
+            sessionInserts.get().addAll(Arrays.asList(entities));
+            return;
+        }
         EntityManager em = null;
         try {
-            em = createEntityManager();
+            em = openSession();
             EntityTransaction transaction = em.getTransaction();
             transaction.begin();
             try {
-                for( EntityBase entity : entities )
+                for( EntityBase entity : entities ) {
+                    prepareToPersist(em, entity);
                     em.persist(entity);
+                }
                 transaction.commit();
+                afterCommit(Arrays.asList(entities));
             }
             catch( Error t ) {
                 transaction.rollback();
@@ -36,7 +55,21 @@ public class PersistUtil {
         }
         finally {
             if( em != null )
-                em.close();
+                closeSession(em);
+        }
+    }
+
+
+    private static void prepareToPersist(EntityManager em, EntityBase entity) {
+        if( entity instanceof Book )
+            ((Book) entity).prepareToPersist(em);
+    }
+
+
+    private static void afterCommit(Collection<EntityBase> entities) {
+        for( EntityBase entity : entities ) {
+            if( entity instanceof Book )
+                ((Book) entity).afterCommit();
         }
     }
 
@@ -58,7 +91,7 @@ public class PersistUtil {
     public static void queryEach( Visitor<Object[]> handler, int batchSize, String queryStr, Object... params) {
         EntityManager em = null;
         try {
-            em = createEntityManager();
+            em = openSession();
             final Query query = em.createQuery(queryStr);
             if( params != null ) {
                 for( int i = 0; i < params.length; i++ ) {
@@ -81,7 +114,7 @@ public class PersistUtil {
         }
         finally {
             if( em != null )
-                em.close();
+                closeSession(em);
         }
     }
 
@@ -96,7 +129,7 @@ public class PersistUtil {
                                                          String queryStr, Object... params ) {
         EntityManager em = null;
         try {
-            em = createEntityManager();
+            em = openSession();
             final TypedQuery<T> query = em.createQuery(queryStr, resultType);
             if( params != null ) {
                 for( int i = 0; i < params.length; i++ ) {
@@ -118,15 +151,138 @@ public class PersistUtil {
         }
         finally {
             if( em != null )
+                closeSession(em);
+        }
+    }
+
+
+    /**
+     * Like queryEach(), but runs the query once and scrolls forward through the results, fetching fetchSize rows per
+     * round-trip (see db.fetch.size).  The session is cleared every fetchSize rows, so a scan of a whole table runs
+     * in flat memory.  Results are read-only.  The visitor is called once for each row with an Object[] of column
+     * values.
+     */
+    public static void streamEach( Visitor<Object[]> handler, String queryStr, Object... params ) {
+        EntityManager em = null;
+        try {
+            em = createEntityManager();
+            ScrollableResults results = scroll(em, queryStr, params);
+            try {
+                Session session = em.unwrap(Session.class);
+                for( int count = 1; results.next(); count++ ) {
+                    if( !handler.handleItem(results.get()) )
+                        return;
+                    if( count % fetchSize == 0 )
+                        session.clear();
+                }
+            }
+            finally {
+                results.close();
+            }
+        }
+        finally {
+            if( em != null )
+                em.close();
+        }
+    }
+
+
+    /**
+     * Like queryEach(), but runs the query once and scrolls forward through the results, fetching fetchSize rows per
+     * round-trip (see db.fetch.size).  The session is cleared every fetchSize rows, so a scan of a whole table runs
+     * in flat memory.  Results are read-only.
+     */
+    public static <T> void streamEach( Class<T> resultType, Visitor<T> handler, String queryStr, Object... params ) {
+        try( Cursor<T> cursor = openCursor(resultType, queryStr, params) ) {
+            for( T item = cursor.next(); item != null; item = cursor.next() ) {
+                if( !handler.handleItem(item) )
+                    return;
+            }
+        }
+    }
+
+
+    /**
+     * Opens a forward-only scroll over the query, like streamEach(), for callers which pull rows one at a time instead
+     * of visiting them, such as a merge of several queries.  The Cursor holds its own session and connection until it
+     * is closed or runs out.
+     */
+    public static <T> Cursor<T> openCursor( Class<T> resultType, String queryStr, Object... params ) {
+        EntityManager em = createEntityManager();
+        try {
+            return new Cursor<>(resultType, em, scroll(em, queryStr, params));
+        }
+        catch( RuntimeException | Error e ) {
+            em.close();
+            throw e;
+        }
+    }
+
+
+    public static class Cursor<T> implements AutoCloseable {
+
+        /** @return the next row, or null once there are no more.  Rows returned earlier may be detached */
+        public T next() {
+            if( results == null )
+                return null;
+            // clear before moving on, so the row returned last stays attached while the caller uses it
+            if( count > 0 && count % fetchSize == 0 )
+                em.unwrap(Session.class).clear();
+            if( !results.next() ) {
+                close();
+                return null;
+            }
+            count++;
+            return resultType.cast(results.get(0));
+        }
+
+
+        public void close() {
+            if( results == null )
+                return;
+            try {
+                results.close();
+            }
+            finally {
+                results = null;
                 em.close();
+            }
+        }
+
+
+        private Cursor( Class<T> resultType, EntityManager em, ScrollableResults results ) {
+            this.resultType = resultType;
+            this.em = em;
+            this.results = results;
         }
+
+
+        private final Class<T> resultType;
+        private final EntityManager em;
+        private ScrollableResults results;
+        private long count;
+    }
+
+
+    private static ScrollableResults scroll( EntityManager em, String queryStr, Object... params ) {
+        final Query query = em.createQuery(queryStr);
+        if( params != null ) {
+            for( int i = 0; i < params.length; i++ ) {
+                Object param = params[i];
+                query.setParameter(i+1,param); // JPA uses 1-based indexes
+            }
+        }
+        return query.unwrap(org.hibernate.Query.class)
+                    .setReadOnly(true)
+                    .setFetchSize(fetchSize)
+                    .scroll(ScrollMode.FORWARD_ONLY);
     }
 
 
     public static <T> List<T> queryList( Class<T> resultType, String queryStr, Object... params ) {
         EntityManager em = null;
         try {
-            em = createEntityManager();
+            em = openSession();
             final TypedQuery<T> query = em.createQuery(queryStr, resultType);
             if( params != null ) {
                 for( int i = 0; i < params.length; i++ ) {
@@ -138,7 +294,7 @@ public class PersistUtil {
         }
         finally {
             if( em != null )
-                em.close();
+                closeSession(em);
         }
     }
 
@@ -151,7 +307,7 @@ public class PersistUtil {
     {
         EntityManager em = null;
         try {
-            em = createEntityManager();
+            em = openSession();
             final TypedQuery<T> query = em.createQuery(queryStr,resultType);
             if( params != null ) {
                 for( int i = 0; i < params.length; i++ ) {
@@ -163,7 +319,7 @@ public class PersistUtil {
         }
         finally {
             if( em != null )
-                em.close();
+                closeSession(em);
         }
     }
 
@@ -174,7 +330,7 @@ public class PersistUtil {
     public static <T> T queryZeroOne( Class<T> resultType, String queryStr, Object... params ) {
         EntityManager em = null;
         try {
-            em = createEntityManager();
+            em = openSession();
             final TypedQuery<T> query = em.createQuery(queryStr,resultType);
             if( params != null ) {
                 for( int i = 0; i < params.length; i++ ) {
@@ -191,7 +347,7 @@ public class PersistUtil {
         }
         finally {
             if( em != null )
-                em.close();
+                closeSession(em);
         }
     }
 
@@ -201,6 +357,58 @@ public class PersistUtil {
     }
 
 
+    public interface UnitOfWork<T> {
+        T run(EntityManager em);
+    }
+
+
+    /**
+     * Runs the work in one session and one transaction, which is committed when the work returns and rolled back if
+     * it throws.  The PersistUtil query and insert methods called during the work use the same session instead of
+     * each opening their own, except streamEach(), which clears its session as it goes.  Nested calls join the
+     * outer unit of work.
+     */
+    public static <T> T withSession(UnitOfWork<T> work) {
+        EntityManager outer = currentSession.get();
+        if( outer != null )
+            return work.run(outer);
+        EntityManager em = createEntityManager();
+        currentSession.set(em);
+        sessionInserts.set(new ArrayList<EntityBase>());
+        EntityTransaction transaction = em.getTransaction();
+        try {
+            transaction.begin();
+            T result = work.run(em);
+            transaction.commit();
+            afterCommit(sessionInserts.get());
+            return result;
+        }
+        catch( RuntimeException | Error e ) {
+            if( transaction.isActive() )
+                transaction.rollback();
+            throw e;
+        }
+        finally {
+            currentSession.remove();
+            sessionInserts.remove();
+            em.close();
+        }
+    }
+
+
+    /** @return the session of the current withSession() unit of work, or a new one */
+    private static EntityManager openSession() {
+        EntityManager current = currentSession.get();
+        return current != null ? current : createEntityManager();
+    }
+
+
+    private static void closeSession(EntityManager em) {
+        if( em != currentSession.get() )
+            em.close();
+    }
+
+
     public static EntityManager createEntityManager() {
         init(false);
         return entityManagerFactory.createEntityManager();
@@ -230,6 +438,11 @@ public class PersistUtil {
                 // entityManagerFactory exists, is open, and a reset is not requested.  continue to use existing EMF
                 return;
             }
+            else {
+                // closing the factory also closes its connection pool and the pool's helper threads
+                entityManagerFactory.close();
+                entityManagerFactory = null;
+            }
         }
         if( resetDatabase ) {
             log.info("resetting database");
@@ -248,9 +461,27 @@ public class PersistUtil {
         properties.put("hibernate.connection.url", ConfigUtil.combined().getString("db.url"));
         properties.put("hibernate.connection.username", ConfigUtil.combined().getString("db.username"));
         properties.put("hibernate.connection.password", ConfigUtil.combined().getString("db.password"));
+        // lets a WriteBehindPersister send each flush as a few JDBC batches instead of one statement per row
+        properties.put("hibernate.jdbc.batch_size", ConfigUtil.combined().getString("db.batch.size", "50"));
+        properties.put("hibernate.order_inserts", "true");
+        fetchSize = ConfigUtil.combined().getInt("db.fetch.size", 1000);
+        EntityBase.setIdGenerator(IdGenerators.forConfig(ConfigUtil.combined()));
+        // a bounded c3p0 pool instead of Hibernate's built-in one, metered by MeteredConnectionProvider
+        properties.put("hibernate.connection.provider_class", MeteredConnectionProvider.class.getName());
+        properties.put("hibernate.c3p0.min_size", ConfigUtil.combined().getString("db.pool.min", "2"));
+        properties.put("hibernate.c3p0.max_size", ConfigUtil.combined().getString("db.pool.max", "20"));
+        properties.put("hibernate.c3p0.max_statements", ConfigUtil.combined().getString("db.pool.statements", "200"));
+        properties.put("hibernate.c3p0.timeout", ConfigUtil.combined().getString("db.pool.idle.seconds", "300"));
+        properties.put("hibernate.c3p0.idle_test_period", ConfigUtil.combined().getString("db.pool.test.seconds", "60"));
+        properties.put("hibernate.c3p0.checkoutTimeout", ConfigUtil.combined().getString("db.pool.wait.millis", "30000"));
+        properties.put("hibernate.c3p0.preferredTestQuery", ConfigUtil.combined().getString("db.pool.test.query", "select 1"));
+        properties.put("hibernate.c3p0.testConnectionOnCheckin", "true");
 
         try {
             entityManagerFactory = Persistence.createEntityManagerFactory("org.cryptocoinpartners.schema", properties);
+            // the cached reference data and Book levels may not match a new or reset database
+            ReferenceData.invalidate();
+            Book.clearResolvedCache();
             ensureSingletonsExist();
         }
         catch( Throwable t ) {
@@ -272,4 +503,7 @@ public class PersistUtil {
 
     private static EntityManagerFactory entityManagerFactory;
     private static final int defaultBatchSize = 20;
+    private static int fetchSize = 1000;
+    private static final ThreadLocal<EntityManager> currentSession = new ThreadLocal<>();
+    private static final ThreadLocal<List<EntityBase>> sessionInserts = new ThreadLocal<>();
 }
@@ -1,23 +1,30 @@
 package org.cryptocoinpartners.util;
 
+import org.apache.commons.configuration.Configuration;
 import org.cryptocoinpartners.module.Context;
+import org.cryptocoinpartners.module.ContextPool;
 import org.cryptocoinpartners.schema.Book;
 import org.cryptocoinpartners.schema.Event;
+import org.cryptocoinpartners.schema.Market;
 import org.cryptocoinpartners.schema.RemoteEvent;
 import org.cryptocoinpartners.schema.Trade;
-import org.joda.time.Duration;
 import org.joda.time.Instant;
 import org.joda.time.Interval;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 
 
 /**
  Manages a Context into which Trades and Books from the database are replayed.  The Context time is also managed by this
- class as it advances through the events.
+ class as it advances through the events.  Events are streamed from forward-only Cursors, each ordered by time in the
+ database, and merged by an EventMerger, so no more than one batch of events is held in memory.
  */
 public class Replay
 {
@@ -49,8 +56,18 @@ public class Replay
 
 
     public Replay( Interval replayTimeInterval, boolean orderByTimeReceived ) {
+        this(replayTimeInterval, orderByTimeReceived, null);
+    }
+
+
+    /**
+     @param pool if not null, the Context is taken from this pool.  Give it back with pool.release(getContext())
+     after the run.
+     */
+    public Replay( Interval replayTimeInterval, boolean orderByTimeReceived, @Nullable ContextPool pool ) {
         this.replayTimeInterval = replayTimeInterval; // set this before creating EventTimeManager
-        this.context = Context.create(new EventTimeManager());
+        this.context = pool == null ? Context.create(new EventTimeManager()) : pool.acquire(new EventTimeManager());
+        this.context.setSkipTimerGaps(true); // replayed data may have gaps of hours between events
         this.orderByTimeReceived = orderByTimeReceived;
     }
 
@@ -58,42 +75,98 @@ public class Replay
     public Context getContext() { return context; }
 
 
+    /** sets which kinds of RemoteEvent are replayed, each from its own Cursor.  The default is Trades and Books */
+    public void setEventTypes( Collection<Class<? extends RemoteEvent>> eventTypes ) {
+        this.eventTypes = new ArrayList<>(eventTypes);
+    }
+
+
     /**
-     queries the database for all Books and Trades which have start <= time <= stop, then publishes those
-     Events in order of time to this Replay's Context
+     restricts the replay to the given Markets, with one Cursor per Market and event type.  Each Cursor holds a
+     database connection while the replay runs, so keep db.pool.max in mind.  null replays all Markets from one Cursor
+     per event type.
+     */
+    public void setMarkets( @Nullable Collection<Market> markets ) {
+        this.markets = markets == null ? null : new ArrayList<>(markets);
+    }
+
+
+    /**
+     streams all the Events which have start <= time <= stop from the database, merged in order of time, and publishes
+     them to this Replay's Context in batches.  Unless prefetch is 0, the batches are read ahead on another thread
      */
     public void run() {
         final Instant start = replayTimeInterval.getStart().toInstant();
         final Instant end = replayTimeInterval.getEnd().toInstant();
-        if( replayTimeInterval.toDuration().isLongerThan(timeStep) ) {
-            for( Instant now = start; !now.isAfter(end); ) {
-                final Instant stepEnd = now.plus(timeStep);
-                replayStep(now, stepEnd);
-                now = stepEnd;
+        if( prefetch > 0 )
+            runPrefetching(start, end);
+        else {
+            List<RemoteEvent> batch = new ArrayList<>(batchSize);
+            try( EventMerger events = openEvents(start, end) ) {
+                for( RemoteEvent event = events.next(); event != null; event = events.next() ) {
+                    batch.add(event);
+                    if( batch.size() == batchSize ) {
+                        context.publishAll(batch);
+                        batch.clear();
+                    }
+                }
             }
+            context.publishAll(batch);
         }
-        else
-            replayStep(start,end);
+        context.advanceTime(end); // advance to the end of the replay to trigger any timer events
     }
 
 
-    private void replayStep( Instant start, Instant stop )
-    {
-        for( RemoteEvent event : queryEvents(start, stop) )
-            context.publish(event);
-        context.advanceTime(stop); // advance to the end of the time window to trigger any timer events
+    /**
+     sets how many batches of events a background thread reads and decodes ahead of the Context.  0 reads and publishes
+     on the calling thread.  The default is the replay.prefetch property
+     */
+    public void setPrefetch( int batches ) { prefetch = batches; }
+
+
+    private void runPrefetching( Instant start, Instant end ) {
+        long began = System.nanoTime();
+        long publishNanos = 0;
+        try( EventPrefetcher prefetcher = new EventPrefetcher(openEvents(start, end), batchSize, prefetch) ) {
+            prefetcher.start("Replay prefetch");
+            for( List<RemoteEvent> batch = prefetcher.nextBatch(); batch != null; batch = prefetcher.nextBatch() ) {
+                long publishStart = System.nanoTime();
+                context.publishAll(batch);
+                publishNanos += System.nanoTime() - publishStart;
+            }
+            long elapsed = (System.nanoTime() - began) / 1000000;
+            long reading = prefetcher.getProducerBusyMillis();
+            long publishing = publishNanos / 1000000;
+            // run serially, the reading and the publishing would take about their sum
+            log.info("Replayed " + prefetcher.getEventCount() + " events in " + elapsed + " ms: reading " + reading
+                     + " ms, publishing " + publishing + " ms, waiting for reads " + prefetcher.getConsumerWaitMillis()
+                     + " ms, overlap saved " + Math.max(0, reading + publishing - elapsed) + " ms");
+        }
     }
 
 
-    private List<RemoteEvent> queryEvents( Instant start, Instant stop ) {
+    /** opens one Cursor ordered by time for each event type, or for each event type and Market, and merges them */
+    private EventMerger openEvents( Instant start, Instant stop ) {
         final String timeField = timeFieldForOrdering(orderByTimeReceived);
-        final String tradeQuery = "select t from Trade t where "+timeField+" >= ?1 and "+timeField+" <= ?2";
-        final String bookQuery = "select b from Book b where "+timeField+" >= ?1 and "+timeField+" <= ?2";
-        final List<RemoteEvent> events = new ArrayList<>();
-        events.addAll(PersistUtil.queryList(Trade.class, tradeQuery, start, stop));
-        events.addAll(PersistUtil.queryList(Book.class, bookQuery, start, stop));
-        Collections.sort(events, orderByTimeReceived ? timeReceivedComparator : timeHappenedComparator );
-        return events;
+        EventMerger merger = new EventMerger(orderByTimeReceived);
+        try {
+            for( Class<? extends RemoteEvent> eventType : eventTypes ) {
+                String query = "select e from "+eventType.getSimpleName()+" e where "+timeField+" >= ?1 and "
+                               +timeField+" <= ?2";
+                if( markets == null )
+                    merger.add(PersistUtil.openCursor(eventType, query+" order by "+timeField, start, stop));
+                else {
+                    for( Market market : markets )
+                        merger.add(PersistUtil.openCursor(eventType, query+" and market = ?3 order by "+timeField,
+                                                          start, stop, market));
+                }
+            }
+            return merger;
+        }
+        catch( RuntimeException | Error e ) {
+            merger.close();
+            throw e;
+        }
     }
 
 
@@ -126,27 +199,15 @@ public class Replay
     }
 
 
-    private static String timeFieldForOrdering(boolean orderByTimeReceived) {
-        return orderByTimeReceived ? "timeReceived" : "time";
+    private static int defaultPrefetch() {
+        Configuration config = ConfigUtil.combined();
+        return config == null ? 4 : config.getInt("replay.prefetch", 4);
     }
 
 
-    private static final Comparator<RemoteEvent> timeReceivedComparator = new Comparator<RemoteEvent>()
-    {
-        public int compare( RemoteEvent event, RemoteEvent event2 )
-        {
-            return event.getTimeReceived().compareTo(event2.getTimeReceived());
-        }
-    };
-
-
-    private static final Comparator<RemoteEvent> timeHappenedComparator = new Comparator<RemoteEvent>()
-    {
-        public int compare( RemoteEvent event, RemoteEvent event2 )
-        {
-            return event.getTime().compareTo(event2.getTime());
-        }
-    };
+    private static String timeFieldForOrdering(boolean orderByTimeReceived) {
+        return orderByTimeReceived ? "timeReceived" : "time";
+    }
 
 
     public class EventTimeManager implements Context.TimeProvider
@@ -163,8 +224,14 @@ public class Replay
     }
 
 
+    private static final Logger log = LoggerFactory.getLogger(Replay.class);
+
     private final Interval replayTimeInterval;
     private final Context context;
-    private static final Duration timeStep = Duration.standardMinutes(1); // how many rows from the DB to gather in one batch
+    private static final int batchSize = 1000; // how many Events are published at once
     private final boolean orderByTimeReceived;
+    private List<Class<? extends RemoteEvent>> eventTypes = Arrays.<Class<? extends RemoteEvent>>asList(Trade.class,
+                                                                                                      Book.class);
+    private List<Market> markets;
+    private int prefetch = defaultPrefetch();
 }
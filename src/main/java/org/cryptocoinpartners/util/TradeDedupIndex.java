@@ -0,0 +1,166 @@
+package org.cryptocoinpartners.util;
+
+import org.cryptocoinpartners.schema.Market;
+import org.cryptocoinpartners.schema.Trade;
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Decides whether a Trade was already saved without asking the database for almost every Trade.  Each Market keeps
+ * the most recent remoteKeys it has seen, plus high-water marks for the Trade time and for numeric remoteKeys.  A
+ * Trade whose key is in the recent set is a duplicate.  A Trade newer than the time mark, or whose numeric key is
+ * above the id mark, is new.  Only the rest are looked up in the database.  The index for a Market is warmed from the
+ * database on its first Trade, and the unique index on Trade(market, remoteKey) is the final guard.
+ */
+public class TradeDedupIndex {
+
+    /**
+     * @param recentKeys how many remoteKeys to remember per Market
+     * @param warmWindow how far back from its newest saved Trade each Market's index is loaded
+     */
+    public TradeDedupIndex(int recentKeys, Duration warmWindow) {
+        this.recentKeys = recentKeys;
+        this.warmWindow = warmWindow;
+    }
+
+
+    /**
+     * @return true if the Trade was seen before.  Otherwise the Trade is added to the index and false is returned
+     */
+    public boolean isDuplicate(Trade trade) {
+        String key = trade.getRemoteKey();
+        if( key == null )
+            return false;
+        MarketIndex index = indexes.get(trade.getMarket());
+        if( index == null ) {
+            index = warm(trade.getMarket());
+            MarketIndex existing = indexes.putIfAbsent(trade.getMarket(), index);
+            if( existing != null )
+                index = existing;
+        }
+        synchronized( index ) {
+            if( index.recent.containsKey(key) ) {
+                duplicates.incrementAndGet();
+                return true;
+            }
+            long id = parseId(key);
+            long time = trade.getTime().getMillis();
+            if( time > index.maxTime || (id != NO_ID && id > index.maxId && time >= index.since) )
+                newTrades.incrementAndGet();
+            else {
+                databaseChecks.incrementAndGet();
+                if( PersistUtil.queryZeroOne(Trade.class, "select t from Trade t where market=?1 and remoteKey=?2",
+                                             trade.getMarket(), key) != null ) {
+                    duplicates.incrementAndGet();
+                    index.add(key, NO_ID, Long.MIN_VALUE);
+                    return true;
+                }
+            }
+            index.add(key, id, time);
+            return false;
+        }
+    }
+
+
+    /**
+     * Removes the Trade's key, so the Trade is not taken for a duplicate if it is delivered again.  Call this when a
+     * Trade which isDuplicate() accepted is dropped or fails to insert.
+     */
+    public void forget(Trade trade) {
+        String key = trade.getRemoteKey();
+        MarketIndex index = key == null ? null : indexes.get(trade.getMarket());
+        if( index == null )
+            return;
+        // the high-water marks stay, so a second delivery is checked against the database
+        synchronized( index ) {
+            index.recent.remove(key);
+        }
+    }
+
+
+    /** @return the number of Trades found to be duplicates, from the index or the database */
+    public long getDuplicateCount() { return duplicates.get(); }
+
+
+    /** @return the number of Trades known to be new from the high-water marks alone */
+    public long getNewCount() { return newTrades.get(); }
+
+
+    /** @return the number of Trades which needed a database lookup */
+    public long getDatabaseCheckCount() { return databaseChecks.get(); }
+
+
+    private MarketIndex warm(Market market) {
+        MarketIndex index = new MarketIndex();
+        Instant newest = PersistUtil.queryOne(Instant.class, "select max(t.time) from Trade t where t.market=?1",
+                                              market);
+        if( newest == null )
+            return index;
+        index.since = newest.minus(warmWindow).getMillis();
+        List<Object[]> rows = PersistUtil.queryList(Object[].class,
+                                                    "select t.remoteKey, t.time from Trade t where t.market=?1 "
+                                                    + "and t.time >= ?2 order by t.time",
+                                                    market, new Instant(index.since));
+        for( Object[] row : rows ) {
+            String key = (String) row[0];
+            if( key != null )
+                index.add(key, parseId(key), ((Instant) row[1]).getMillis());
+        }
+        // Trades older than the window are not in the recent set, so they must not look new
+        index.maxTime = Math.max(index.maxTime, newest.getMillis());
+        return index;
+    }
+
+
+    private static long parseId(String key) {
+        int length = key.length();
+        if( length == 0 || length > 18 )
+            return NO_ID;
+        long result = 0;
+        for( int i = 0; i < length; i++ ) {
+            char c = key.charAt(i);
+            if( c < '0' || c > '9' )
+                return NO_ID;
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+
+    private class MarketIndex {
+        private void add(String key, long id, long time) {
+            recent.put(key, Boolean.TRUE);
+            if( id > maxId )
+                maxId = id;
+            if( time > maxTime )
+                maxTime = time;
+        }
+
+
+        private final Map<String,Boolean> recent = new LinkedHashMap<String,Boolean>() {
+            protected boolean removeEldestEntry(Map.Entry<String,Boolean> eldest) {
+                return size() > recentKeys;
+            }
+        };
+        private long maxId = NO_ID;
+        private long maxTime = Long.MIN_VALUE;
+        private long since = Long.MIN_VALUE; // maxId covers the saved Trades from this time on
+    }
+
+
+    private static final long NO_ID = -1;
+
+    private final int recentKeys;
+    private final Duration warmWindow;
+    private final ConcurrentHashMap<Market,MarketIndex> indexes = new ConcurrentHashMap<>();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong newTrades = new AtomicLong();
+    private final AtomicLong databaseChecks = new AtomicLong();
+}
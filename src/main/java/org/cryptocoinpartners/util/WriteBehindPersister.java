@@ -0,0 +1,261 @@
+package org.cryptocoinpartners.util;
+
+import org.cryptocoinpartners.schema.Book;
+import org.cryptocoinpartners.schema.EntityBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Inserts entities on a background thread, so callers never wait on the database.  Entities are queued and written
+ * in one transaction per batch of batchSize, or sooner once the oldest queued entity has waited flushMillis.  One
+ * EntityManager is kept open for all the batches, so Hibernate can send each batch as JDBC batches (see
+ * hibernate.jdbc.batch_size in PersistUtil).  When a batch fails, its entities are retried one at a time so a single
+ * bad row does not lose the rest.  A Book whose parent was dropped or failed is saved as a keyframe.
+ */
+public class WriteBehindPersister {
+
+    /** What persist() does when the queue is full */
+    public enum Overflow {
+        /** waits for room, slowing the caller down to the database's pace */
+        BLOCK,
+        /** drops the entity and counts it */
+        DROP
+    }
+
+
+    /** Told about each entity which will not be saved, because it was dropped or could not be inserted */
+    public interface LossListener {
+        void lost(EntityBase entity);
+    }
+
+
+    public WriteBehindPersister(int capacity, int batchSize, long flushMillis, Overflow overflow) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.flushMillis = flushMillis;
+        this.overflow = overflow;
+    }
+
+
+    /** must be set before start() */
+    public void setLossListener(LossListener lossListener) { this.lossListener = lossListener; }
+
+
+    public void start(String threadName) {
+        writer = new Thread(new Runnable() {
+            public void run() { write(); }
+        }, threadName);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+
+    /** @return false if the queue was full or the persister was stopped, and the entity was dropped */
+    public boolean persist(EntityBase entity) {
+        if( running ) {
+            if( overflow == Overflow.DROP ) {
+                if( queue.offer(entity) )
+                    return true;
+            }
+            else {
+                try {
+                    // wakes up now and then so a caller blocked on a full queue notices stop()
+                    while( running ) {
+                        if( queue.offer(entity, flushMillis, TimeUnit.MILLISECONDS) )
+                            return true;
+                    }
+                }
+                catch( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        dropped.incrementAndGet();
+        lost(entity);
+        return false;
+    }
+
+
+    /**
+     * Stops the writer after everything already queued is written.  Entities queued by a persist() which raced with
+     * stop() are written here, on the calling thread, once the writer has finished.
+     */
+    public void stop() {
+        running = false;
+        if( writer != null ) {
+            try {
+                writer.join();
+            }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        List<EntityBase> leftovers = new ArrayList<>();
+        queue.drainTo(leftovers);
+        if( leftovers.isEmpty() )
+            return;
+        try {
+            insert(leftovers);
+        }
+        finally {
+            closeEntityManager();
+        }
+    }
+
+
+    /** @return the number of entities waiting to be written */
+    public int getQueuedCount() { return queue.size(); }
+
+
+    public long getPersistedCount() { return persisted.get(); }
+
+
+    /** @return the number of entities dropped because the queue was full or the persister was stopped */
+    public long getDroppedCount() { return dropped.get(); }
+
+
+    /** @return the number of entities which could not be inserted even on their own */
+    public long getFailedCount() { return failed.get(); }
+
+
+    public long getBatchCount() { return batches.get(); }
+
+
+    private void write() {
+        List<EntityBase> batch = new ArrayList<>(batchSize);
+        long batchStart = 0;
+        try {
+            while( running || !queue.isEmpty() ) {
+                EntityBase entity;
+                try {
+                    entity = queue.poll(flushMillis, TimeUnit.MILLISECONDS);
+                }
+                catch( InterruptedException e ) {
+                    break;
+                }
+                if( entity != null ) {
+                    if( batch.isEmpty() )
+                        batchStart = System.currentTimeMillis();
+                    batch.add(entity);
+                    queue.drainTo(batch, batchSize - batch.size());
+                }
+                if( !batch.isEmpty() && (batch.size() >= batchSize || !running
+                                         || System.currentTimeMillis() - batchStart >= flushMillis) ) {
+                    insert(batch);
+                    batch.clear();
+                }
+            }
+            queue.drainTo(batch);
+            if( !batch.isEmpty() )
+                insert(batch);
+        }
+        finally {
+            closeEntityManager();
+        }
+    }
+
+
+    private void closeEntityManager() {
+        if( entityManager != null ) {
+            entityManager.close();
+            entityManager = null;
+        }
+    }
+
+
+    private void insert(List<EntityBase> batch) {
+        if( entityManager == null )
+            entityManager = PersistUtil.createEntityManager();
+        EntityTransaction transaction = entityManager.getTransaction();
+        try {
+            transaction.begin();
+            for( EntityBase entity : batch )
+                persist(entityManager, entity);
+            transaction.commit();
+            entityManager.clear();
+            for( EntityBase entity : batch )
+                afterCommit(entity);
+            persisted.addAndGet(batch.size());
+            batches.incrementAndGet();
+        }
+        catch( Throwable t ) {
+            log.warn("Could not insert a batch of " + batch.size() + ".  Inserting them one at a time", t);
+            if( transaction.isActive() )
+                transaction.rollback();
+            entityManager.close();
+            entityManager = null;
+            for( EntityBase entity : batch )
+                insertOne(entity);
+        }
+    }
+
+
+    private void insertOne(EntityBase entity) {
+        EntityManager em = PersistUtil.createEntityManager();
+        EntityTransaction transaction = em.getTransaction();
+        try {
+            transaction.begin();
+            persist(em, entity);
+            transaction.commit();
+            afterCommit(entity);
+            persisted.incrementAndGet();
+        }
+        catch( Throwable e ) {
+            if( transaction.isActive() )
+                transaction.rollback();
+            failed.incrementAndGet();
+            log.error("Could not insert " + entity, e);
+            lost(entity);
+        }
+        finally {
+            em.close();
+        }
+    }
+
+
+    private static void persist(EntityManager em, EntityBase entity) {
+        // a Book's parent is either earlier in this batch, or referenced by id, or was never saved
+        if( entity instanceof Book )
+            ((Book) entity).prepareToPersist(em);
+        em.persist(entity);
+    }
+
+
+    private void lost(EntityBase entity) {
+        if( lossListener != null )
+            lossListener.lost(entity);
+    }
+
+
+    /** only now may later Books refer to a Book by id.  a rolled back batch leaves its Books as they were */
+    private static void afterCommit(EntityBase entity) {
+        if( entity instanceof Book )
+            ((Book) entity).afterCommit();
+    }
+
+
+    private static Logger log = LoggerFactory.getLogger("org.cryptocoinpartners.persist");
+
+    private final BlockingQueue<EntityBase> queue;
+    private final int batchSize;
+    private final long flushMillis;
+    private final Overflow overflow;
+    private final AtomicLong persisted = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private EntityManager entityManager; // used by the writer thread, then by stop() once the writer has ended
+    private volatile LossListener lossListener;
+    private volatile Thread writer;
+    private volatile boolean running = true;
+}
@@ -0,0 +1,64 @@
+package org.cryptocoinpartners.module;
+
+import org.cryptocoinpartners.schema.Trade;
+import org.joda.time.Instant;
+
+import java.util.concurrent.CountDownLatch;
+
+
+/**
+ * Publishes Trades from several producer threads through the Context ingress ring with each WaitStrategy, and reports
+ * throughput, the deepest queue and the number of producer stalls.  Run main() directly; this is not a JUnit test.
+ */
+public class ContextIngressBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int producers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int eventsPerProducer = args.length > 1 ? Integer.parseInt(args[1]) : 250000;
+        int capacity = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+        System.out.println(producers + " producers, " + eventsPerProducer + " events each, ring of " + capacity);
+        System.out.println("wait\tevents/s\tmax depth\tstalls\tdelivered");
+        for( EventRing.WaitStrategy waitStrategy : EventRing.WaitStrategy.values() )
+            run(producers, eventsPerProducer, capacity, waitStrategy);
+        System.exit(0); // the Esper timer thread is not a daemon
+    }
+
+
+    private static void run(int producers, final int eventsPerProducer, int capacity,
+                            EventRing.WaitStrategy waitStrategy) throws InterruptedException {
+        final Context context = Context.create();
+        context.startIngress(capacity, waitStrategy);
+        ContextPublishBenchmark.Subscriber subscriber = new ContextPublishBenchmark.Subscriber();
+        context.subscribe(subscriber);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+        for( int p = 0; p < producers; p++ ) {
+            threads[p] = new Thread(new Runnable() {
+                public void run() {
+                    Trade trade = new Trade(null, new Instant(0), null, 1000, 1);
+                    try {
+                        start.await();
+                    }
+                    catch( InterruptedException e ) {
+                        return;
+                    }
+                    for( int i = 0; i < eventsPerProducer; i++ )
+                        context.publish(trade);
+                }
+            });
+            threads[p].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for( Thread thread : threads )
+            thread.join();
+        EventRing ring = context.getIngress();
+        long maxDepth = ring.getMaxDepth();
+        long stalls = ring.getProducerStalls();
+        context.destroy(); // drains the ring
+        long nanos = System.nanoTime() - begin;
+        long events = (long) producers * eventsPerProducer;
+        System.out.println(waitStrategy + "\t" + String.format("%.0f", events * 1e9 / nanos) + "\t" + maxDepth
+                           + "\t" + stalls + "\t" + subscriber.getCount());
+    }
+}
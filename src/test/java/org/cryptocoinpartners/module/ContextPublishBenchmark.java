@@ -0,0 +1,62 @@
+package org.cryptocoinpartners.module;
+
+import org.cryptocoinpartners.schema.Trade;
+import org.joda.time.Instant;
+
+
+/**
+ * Measures Context.publish() throughput with ten @When subscribers on the same event type.  Run main() directly; this
+ * is not a JUnit test.
+ */
+public class ContextPublishBenchmark {
+
+    public static void main(String[] args) {
+        int subscribers = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int events = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        Context context = Context.create();
+        Subscriber[] instances = new Subscriber[subscribers];
+        for( int i = 0; i < subscribers; i++ ) {
+            instances[i] = new Subscriber();
+            context.subscribe(instances[i]);
+        }
+        Trade[] trades = new Trade[1024];
+        for( int i = 0; i < trades.length; i++ )
+            trades[i] = new Trade(null, new Instant(i), null, 1000 + i, 1 + i);
+
+        // warm up, then time
+        publish(context, trades, events / 10);
+        long start = System.nanoTime();
+        publish(context, trades, events);
+        long nanos = System.nanoTime() - start;
+
+        long received = 0;
+        for( Subscriber subscriber : instances )
+            received += subscriber.count;
+        System.out.println(subscribers + " subscribers, " + events + " events");
+        System.out.println(String.format("%.0f", events * 1e9 / nanos) + " events/s, "
+                                   + String.format("%.0f", (double) nanos / events) + " ns/event");
+        System.out.println(received + " deliveries");
+        context.destroy();
+        System.exit(0); // the Esper timer thread is not a daemon
+    }
+
+
+    private static void publish(Context context, Trade[] trades, int count) {
+        for( int i = 0; i < count; i++ )
+            context.publish(trades[i & (trades.length - 1)]);
+    }
+
+
+    public static class Subscriber {
+        @When("select * from Trade")
+        private void handleTrade(Trade trade) {
+            count += trade.getPriceCount() > 0 ? 1 : 0;
+        }
+
+
+        long getCount() { return count; }
+
+
+        private long count;
+    }
+}
@@ -0,0 +1,100 @@
+package org.cryptocoinpartners.module;
+
+import org.cryptocoinpartners.schema.Event;
+import org.cryptocoinpartners.schema.Trade;
+import org.joda.time.Instant;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class ContextTest {
+
+    @Before
+    public void createContext() {
+        context = Context.create(new Context.TimeProvider() {
+            public Instant getInitialTime() { return new Instant(0); }
+            public Instant nextTime(Event event) { return event.getTime(); }
+        });
+    }
+
+
+    @After
+    public void destroyContext() {
+        context.destroy();
+    }
+
+
+    /** Esper statements are delivered first, then the plain "select * from" subscriptions in subscription order */
+    @Test
+    public void plainSubscriptionsAreCalledAfterEsperInSubscriptionOrder() {
+        List<String> calls = new ArrayList<>();
+        context.subscribe(new Plain("plain 1", calls));
+        context.subscribe(new Filtered("filtered", calls));
+        context.subscribe(new Plain("plain 2", calls));
+        context.subscribe(new Counted("counted", calls));
+        context.subscribe(new Plain("plain 3", calls));
+        context.publish(new Trade(null, new Instant(1), null, 100, 1));
+        assertEquals(5, calls.size());
+        assertEquals(new HashSet<>(Arrays.asList("filtered", "counted")), new HashSet<>(calls.subList(0, 2)));
+        assertEquals(Arrays.asList("plain 1", "plain 2", "plain 3"), calls.subList(2, 5));
+    }
+
+
+    public static class Plain {
+        @When("select * from Trade")
+        void handleTrade(Trade trade) { calls.add(name); }
+
+
+        Plain(String name, List<String> calls) {
+            this.name = name;
+            this.calls = calls;
+        }
+
+
+        private final String name;
+        private final List<String> calls;
+    }
+
+
+    public static class Filtered {
+        @When("select * from Trade where priceCount > 0")
+        void handleTrade(Trade trade) { calls.add(name); }
+
+
+        Filtered(String name, List<String> calls) {
+            this.name = name;
+            this.calls = calls;
+        }
+
+
+        private final String name;
+        private final List<String> calls;
+    }
+
+
+    public static class Counted {
+        @When("select count(*) from Trade")
+        void handleCount(long count) { calls.add(name); }
+
+
+        Counted(String name, List<String> calls) {
+            this.name = name;
+            this.calls = calls;
+        }
+
+
+        private final String name;
+        private final List<String> calls;
+    }
+
+
+    private Context context;
+}
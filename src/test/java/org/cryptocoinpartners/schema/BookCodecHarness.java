@@ -0,0 +1,168 @@
+package org.cryptocoinpartners.schema;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+
+/**
+ * Checks BookCodec: random level and index blobs survive a round trip, including negative and very large counts
+ * which exercise the zig-zag varints, and blobs written with ObjectOutputStream before the codec existed still
+ * decode.  Also checks that unknown versions and truncated blobs throw IllegalArgumentException.  Run main()
+ * directly; it prints each check and exits with status 1 if any failed.  This is not a JUnit test.
+ */
+public class BookCodecHarness {
+
+    public static void main(String[] args) throws IOException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        Random random = new Random(42);
+
+        int levelFailures = 0;
+        int indexFailures = 0;
+        for( int i = 0; i < iterations; i++ ) {
+            BookSide side = randomSide(random.nextInt(200), random);
+            byte[] blob = BookCodec.encodeLevels(side);
+            if( blob.length != BookCodec.encodedSize(side) || !sameLevels(side, BookCodec.decodeLevels(blob)) )
+                levelFailures++;
+
+            int[] indexes = randomIndexes(random.nextInt(200), random);
+            byte[] indexBlob = BookCodec.encodeIndexes(indexes, indexes.length);
+            if( !BookCodec.decodeIndexSet(indexBlob, parentSize(indexes)).equals(bitSet(indexes)) )
+                indexFailures++;
+        }
+        check("level round trips", levelFailures == 0, levelFailures + " of " + iterations + " differ");
+        check("index round trips", indexFailures == 0, indexFailures + " of " + iterations + " differ");
+
+        BookSide side = randomSide(100, random);
+        check("legacy levels", sameLevels(side, BookCodec.decodeLevels(legacyLevels(side))), "decoded levels differ");
+        int[] indexes = randomIndexes(100, random);
+        check("legacy indexes", BookCodec.decodeIndexSet(legacyIndexes(indexes), parentSize(indexes)).equals(bitSet(indexes)),
+              "decoded indexes differ");
+
+        byte[] levelBlob = BookCodec.encodeLevels(side);
+        byte[] indexBlob = BookCodec.encodeIndexes(indexes, indexes.length);
+        byte[] unknownVersion = levelBlob.clone();
+        unknownVersion[0] = BookCodec.VERSION + 1;
+        checkRejected("unknown version", unknownVersion, unknownVersion);
+        checkRejected("empty blob", new byte[0], new byte[0]);
+        checkRejected("truncated blob", half(levelBlob), half(indexBlob));
+        checkRejected("truncated legacy blob", half(legacyLevels(side)), half(legacyIndexes(indexes)));
+
+        System.out.println(failures == 0 ? "all passed" : failures + " failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+
+    /** levels with a mix of small steps and extreme values, so every varint length and both signs are written */
+    private static BookSide randomSide(int depth, Random random) {
+        BookSide result = new BookSide(depth);
+        for( int i = 0; i < depth; i++ ) {
+            long price = random.nextInt(4) == 0 ? random.nextLong() : 1000000 - i * (1 + random.nextInt(5));
+            long volume = random.nextInt(4) == 0 ? random.nextLong() : random.nextInt(10000) - 100;
+            result.add(price, volume);
+        }
+        return result;
+    }
+
+
+    /** ascending indexes, with runs of consecutive ones and some large gaps */
+    private static int[] randomIndexes(int count, Random random) {
+        int[] result = new int[count];
+        int index = -1;
+        for( int i = 0; i < count; i++ ) {
+            int roll = random.nextInt(10);
+            index += roll < 6 ? 1 : roll < 9 ? 2 + random.nextInt(10) : 1 + random.nextInt(100000);
+            result[i] = index;
+        }
+        return result;
+    }
+
+
+    /** @return the smallest parent side the indexes fit in */
+    private static int parentSize(int[] indexes) { return indexes.length == 0 ? 0 : indexes[indexes.length - 1] + 1; }
+
+
+    /** the format Book wrote before BookCodec */
+    private static byte[] legacyLevels(BookSide side) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeInt(side.size());
+        for( int i = 0; i < side.size(); i++ ) {
+            out.writeLong(side.priceCount(i));
+            out.writeLong(side.volumeCount(i));
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+
+    private static byte[] legacyIndexes(int[] indexes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeInt(indexes.length);
+        for( int index : indexes )
+            out.writeInt(index);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+
+    private static boolean sameLevels(BookSide expected, BookSide actual) {
+        if( expected.size() != actual.size() )
+            return false;
+        for( int i = 0; i < expected.size(); i++ ) {
+            if( expected.priceCount(i) != actual.priceCount(i) || expected.volumeCount(i) != actual.volumeCount(i) )
+                return false;
+        }
+        return true;
+    }
+
+
+    private static BitSet bitSet(int[] indexes) {
+        BitSet result = new BitSet();
+        for( int index : indexes )
+            result.set(index);
+        return result;
+    }
+
+
+    private static byte[] half(byte[] blob) { return Arrays.copyOf(blob, blob.length / 2); }
+
+
+    private static void checkRejected(String name, byte[] levelBlob, byte[] indexBlob) {
+        String levels = rejection(levelBlob, true);
+        String indexes = rejection(indexBlob, false);
+        check(name, levels == null && indexes == null, levels != null ? levels : indexes);
+    }
+
+
+    /** @return null if decoding threw IllegalArgumentException, otherwise what happened instead */
+    private static String rejection(byte[] blob, boolean levels) {
+        try {
+            if( levels )
+                BookCodec.decodeLevels(blob);
+            else
+                BookCodec.decodeIndexSet(blob, Integer.MAX_VALUE);
+            return "decoded without an exception";
+        }
+        catch( IllegalArgumentException e ) {
+            return null;
+        }
+        catch( Throwable t ) {
+            return "threw " + t;
+        }
+    }
+
+
+    private static void check(String name, boolean passed, String problem) {
+        System.out.println(name + ":\t" + (passed ? "ok" : "FAILED, " + problem));
+        if( !passed )
+            failures++;
+    }
+
+
+    private static int failures;
+}
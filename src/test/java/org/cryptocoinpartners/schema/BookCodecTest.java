@@ -0,0 +1,83 @@
+package org.cryptocoinpartners.schema;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import static org.cryptocoinpartners.schema.BookSideTest.assertSameLevels;
+import static org.cryptocoinpartners.schema.BookSideTest.side;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class BookCodecTest {
+
+    @Test
+    public void levelsRoundTrip() {
+        BookSide levels = side(100, 3, 100, -2, 99, Long.MAX_VALUE, Long.MIN_VALUE, 0);
+        byte[] blob = BookCodec.encodeLevels(levels);
+        assertEquals(BookCodec.encodedSize(levels), blob.length);
+        assertSameLevels(levels, BookCodec.decodeLevels(blob));
+    }
+
+
+    @Test
+    public void indexesRoundTrip() {
+        int[] indexes = {0, 1, 2, 5, 9, 10, 1000};
+        BitSet expected = new BitSet();
+        for( int index : indexes )
+            expected.set(index);
+        assertEquals(expected, BookCodec.decodeIndexSet(BookCodec.encodeIndexes(indexes, indexes.length), 1001));
+    }
+
+
+    @Test
+    public void emptySides() {
+        assertEquals(0, BookCodec.decodeLevels(BookCodec.encodeLevels(side())).size());
+        assertTrue(BookCodec.decodeIndexSet(BookCodec.encodeIndexes(new int[0], 0), 0).isEmpty());
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyBlobIsRejected() {
+        BookCodec.decodeLevels(new byte[0]);
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownVersionIsRejected() {
+        byte[] blob = BookCodec.encodeLevels(side(100, 1));
+        blob[0] = BookCodec.VERSION + 1;
+        BookCodec.decodeLevels(blob);
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedLevelsAreRejected() {
+        byte[] blob = BookCodec.encodeLevels(side(100, 1, 99, 2, 98, 3));
+        BookCodec.decodeLevels(Arrays.copyOf(blob, blob.length - 1));
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void levelCountLargerThanTheBlobIsRejected() {
+        // version, then a count of 2^28 levels with no level data
+        byte[] blob = {BookCodec.VERSION, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01};
+        BookCodec.decodeLevels(blob);
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void runPastTheParentIsRejected() {
+        // version, one run, gap 0, length Integer.MAX_VALUE
+        byte[] blob = {BookCodec.VERSION, 1, 0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07};
+        BookCodec.decodeIndexSet(blob, 10);
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void indexPastTheParentIsRejected() {
+        BookCodec.decodeIndexSet(BookCodec.encodeIndexes(new int[] {3}, 1), 3);
+    }
+}
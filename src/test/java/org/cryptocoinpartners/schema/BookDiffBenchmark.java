@@ -0,0 +1,97 @@
+package org.cryptocoinpartners.schema;
+
+import java.util.Random;
+
+
+/**
+ * Compares the single-pass merge diff used when persisting Books against the previous nested-loop diff, which
+ * called hasQuote() for every level of the other side.  Run main() directly; this is not a JUnit test.
+ */
+public class BookDiffBenchmark {
+
+    public static void main(String[] args) {
+        int[] depths = {50, 500, 5000};
+        System.out.println("levels\tmerge us/diff\tnested us/diff");
+        for( int depth : depths ) {
+            BookSide parent = randomSide(depth, random);
+            BookSide child = mutate(parent, random);
+            int iterations = Math.max(20, 2000000 / depth);
+            int nestedIterations = Math.max(3, iterations / depth * 10);
+            // warm up both implementations before timing
+            for( int i = 0; i < 5; i++ ) {
+                BookSide.diff(parent, child, true);
+                nestedDiff(parent, child);
+            }
+            double mergeMicros = time(parent, child, iterations, true);
+            double nestedMicros = time(parent, child, nestedIterations, false);
+            System.out.println(depth + "\t" + String.format("%.2f", mergeMicros) + "\t"
+                                       + String.format("%.2f", nestedMicros));
+        }
+    }
+
+
+    private static double time(BookSide parent, BookSide child, int iterations, boolean merge) {
+        long start = System.nanoTime();
+        for( int i = 0; i < iterations; i++ ) {
+            if( merge )
+                sink += BookSide.diff(parent, child, true).getDeletionCount();
+            else
+                sink += nestedDiff(parent, child);
+        }
+        return (System.nanoTime() - start) / 1000.0 / iterations;
+    }
+
+
+    /** bids, high to low, one level per price */
+    private static BookSide randomSide(int depth, Random random) {
+        BookSide result = new BookSide(depth);
+        long price = 1000000;
+        for( int i = 0; i < depth; i++ ) {
+            price -= 1 + random.nextInt(5);
+            result.add(price, 1 + random.nextInt(10000));
+        }
+        return result;
+    }
+
+
+    /** changes the volume of about 10% of the levels and drops about 5%, like a typical poll-to-poll change */
+    private static BookSide mutate(BookSide parent, Random random) {
+        BookSide result = new BookSide(parent.size());
+        for( int i = 0; i < parent.size(); i++ ) {
+            int roll = random.nextInt(100);
+            if( roll < 5 )
+                continue;
+            long volume = roll < 15 ? 1 + random.nextInt(10000) : parent.volumeCount(i);
+            result.add(parent.priceCount(i), volume);
+        }
+        return result;
+    }
+
+
+    /** the previous O(n*m) algorithm, kept here for comparison */
+    private static int nestedDiff(BookSide parent, BookSide child) {
+        int changes = 0;
+        for( int i = 0; i < child.size(); i++ ) {
+            if( !hasQuote(parent, child.priceCount(i), child.volumeCount(i)) )
+                changes++;
+        }
+        for( int i = 0; i < parent.size(); i++ ) {
+            if( !hasQuote(child, parent.priceCount(i), parent.volumeCount(i)) )
+                changes++;
+        }
+        return changes;
+    }
+
+
+    private static boolean hasQuote(BookSide side, long priceCount, long volumeCount) {
+        for( int i = 0; i < side.size(); i++ ) {
+            if( side.priceCount(i) == priceCount && side.volumeCount(i) == volumeCount )
+                return true;
+        }
+        return false;
+    }
+
+
+    private static final Random random = new Random(42);
+    private static long sink;
+}
@@ -0,0 +1,113 @@
+package org.cryptocoinpartners.schema;
+
+import org.joda.time.Instant;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+
+/**
+ * Measures the heap held by the latest Book of many Markets, the way BasicQuoteService and TickWindow hold them.  Both
+ * runs hold only the latest Book of each Market.  In the "never saved" run no Book is saved, as when SaveMarketData is
+ * not attached or drops Books, so each one holds its parent only weakly.  In the "saved" run each Book gets
+ * afterCommit() as if the persister had saved it, which replaces the parent with an id-only reference.  Neither run
+ * should keep a chain of parents alive.  Run main() directly with a fixed heap, e.g. -Xmx1g; this is not a JUnit test.
+ */
+public class BookRetentionHarness {
+
+    public static void main(String[] args) {
+        int markets = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int booksPerMarket = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+        int depth = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+        long baseline = usedHeap();
+        Map<Market,Book> latest = new HashMap<>();
+        run(markets, booksPerMarket, depth, latest, false);
+        long unsaved = usedHeap() - baseline;
+        int unsavedRetained = countRetainedParents(latest);
+        latest.clear();
+
+        baseline = usedHeap();
+        run(markets, booksPerMarket, depth, latest, true);
+        long saved = usedHeap() - baseline;
+        int savedRetained = countRetainedParents(latest);
+
+        System.out.println(markets + " markets, " + booksPerMarket + " books each, " + depth + " levels per side");
+        System.out.println("never saved:\t" + unsaved / 1024 + " KB (" + unsavedRetained + " latest Books hold a parent)");
+        System.out.println("saved:\t\t" + saved / 1024 + " KB (" + savedRetained + " latest Books hold a parent)");
+        // this also keeps the map reachable until it is measured
+        System.out.println("markets held:\t" + latest.size());
+    }
+
+
+    /** @param save whether each Book gets afterCommit() right after it is built */
+    private static void run(int markets, int booksPerMarket, int depth, Map<Market,Book> latest, boolean save) {
+        Random random = new Random(42);
+        Book.Builder builder = new Book.Builder();
+        List<Market> allMarkets = new ArrayList<>();
+        for( int m = 0; m < markets; m++ )
+            allMarkets.add(market("EX" + m % 10, "C" + m));
+        for( int n = 0; n < booksPerMarket; n++ ) {
+            for( Market market : allMarkets ) {
+                builder.start(Instant.now(), null, market);
+                for( int i = 0; i < depth; i++ ) {
+                    builder.addBid(new BigDecimal(1000 - i), new BigDecimal(1 + random.nextInt(100)));
+                    builder.addAsk(new BigDecimal(1001 + i), new BigDecimal(1 + random.nextInt(100)));
+                }
+                Book book = builder.build();
+                // legacy consumers materialize the Offer lists
+                book.getBids();
+                book.getAsks();
+                if( save )
+                    book.afterCommit();
+                latest.put(market, book);
+            }
+        }
+    }
+
+
+    /** @return how many of the Books still reach a parent with levels, after a full GC */
+    private static int countRetainedParents(Map<Market,Book> latest) {
+        usedHeap();
+        int result = 0;
+        for( Book book : latest.values() ) {
+            if( book.retainedParent() != null )
+                result++;
+        }
+        return result;
+    }
+
+
+    private static Market market(String exchangeSymbol, String baseSymbol) {
+        Exchange exchange = new Exchange();
+        exchange.setSymbol(exchangeSymbol);
+        Currency base = new Currency();
+        base.setSymbol(baseSymbol);
+        base.setBasis(1e-8);
+        Currency quote = new Currency();
+        quote.setSymbol("USD");
+        quote.setBasis(0.01);
+        Listing listing = new Listing();
+        listing.setBase(base);
+        listing.setQuote(quote);
+        Market result = new Market();
+        result.setExchange(exchange);
+        result.setListing(listing);
+        result.setPriceBasis(0.01);
+        result.setVolumeBasis(1e-8);
+        result.setActive(true);
+        return result;
+    }
+
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for( int i = 0; i < 5; i++ )
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
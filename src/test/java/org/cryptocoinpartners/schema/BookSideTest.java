@@ -0,0 +1,109 @@
+package org.cryptocoinpartners.schema;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+
+public class BookSideTest {
+
+    @Test
+    public void duplicatePricesKeepTheChildOrder() {
+        BookSide parent = side(100, 1, 100, 2, 99, 5);
+        BookSide child = side(100, 3, 100, 2, 100, 1, 99, 5);
+        assertRoundTrip(parent, child, true);
+        assertRoundTrip(child, parent, true);
+        assertRoundTrip(side(101, -2, 101, -1), side(101, -1, 101, -2, 102, -4), false);
+    }
+
+
+    @Test
+    public void emptySides() {
+        BookSide empty = side();
+        assertRoundTrip(empty, empty, true);
+        assertRoundTrip(empty, side(100, 1, 99, 2), true);
+        assertRoundTrip(side(100, 1, 99, 2), empty, true);
+        assertEquals(0, BookSide.diff(empty, empty, false).getInsertionCount());
+        assertEquals(0, BookSide.diff(empty, empty, false).getDeletionCount());
+    }
+
+
+    @Test
+    public void diffFindsChangedLevels() {
+        BookSide parent = side(100, 1, 99, 2, 98, 3);
+        BookSide child = side(101, 4, 100, 1, 99, 5, 98, 3);
+        BookSide.Diff diff = BookSide.diff(parent, child, true);
+        assertArrayEquals(new int[] {0, 2}, diff.getInsertions());
+        assertArrayEquals(new int[] {1}, diff.getDeletions());
+        assertRoundTrip(parent, child, true);
+    }
+
+
+    @Test
+    public void randomRoundTrips() {
+        Random random = new Random(42);
+        for( int i = 0; i < 1000; i++ ) {
+            boolean descending = random.nextBoolean();
+            BookSide parent = randomSide(random, descending);
+            BookSide child = randomSide(random, descending);
+            assertRoundTrip(parent, child, descending);
+            assertRoundTrip(parent, parent, descending);
+        }
+    }
+
+
+    @Test
+    public void sortKeepsDuplicatePricesInInsertionOrder() {
+        BookSide sorted = side(99, 1, 100, 2, 99, 3, 100, 4);
+        sorted.sortDescending();
+        assertSameLevels(side(100, 2, 100, 4, 99, 1, 99, 3), sorted);
+    }
+
+
+    /** few distinct prices, so most sides have duplicates */
+    private static BookSide randomSide(Random random, boolean descending) {
+        int depth = random.nextInt(12);
+        BookSide result = new BookSide(depth);
+        for( int i = 0; i < depth; i++ )
+            result.add(100 + random.nextInt(5), random.nextInt(3) + 1);
+        if( descending )
+            result.sortDescending();
+        else
+            result.sortAscending();
+        return result;
+    }
+
+
+    static BookSide side(long... priceVolumePairs) {
+        BookSide result = new BookSide(priceVolumePairs.length / 2);
+        for( int i = 0; i < priceVolumePairs.length; i += 2 )
+            result.add(priceVolumePairs[i], priceVolumePairs[i + 1]);
+        return result;
+    }
+
+
+    /** diffs child against parent, passes the diff through BookCodec the way Book saves it, and merges it back */
+    static void assertRoundTrip(BookSide parent, BookSide child, boolean descending) {
+        BookSide.Diff diff = BookSide.diff(parent, child, descending);
+        BookSide insertions = new BookSide(diff.getInsertionCount());
+        for( int i = 0; i < diff.getInsertionCount(); i++ )
+            insertions.add(child.priceCount(diff.insertion(i)), child.volumeCount(diff.insertion(i)));
+        BookSide decoded = BookCodec.decodeLevels(BookCodec.encodeLevels(insertions));
+        byte[] deletions = BookCodec.encodeIndexes(diff.getDeletions(), diff.getDeletionCount());
+        BitSet deleted = BookCodec.decodeIndexSet(deletions, parent.size());
+        assertSameLevels(child, BookSide.merge(parent, deleted, decoded, descending));
+    }
+
+
+    static void assertSameLevels(BookSide expected, BookSide actual) {
+        assertEquals("size", expected.size(), actual.size());
+        for( int i = 0; i < expected.size(); i++ ) {
+            assertEquals("price at " + i, expected.priceCount(i), actual.priceCount(i));
+            assertEquals("volume at " + i, expected.volumeCount(i), actual.volumeCount(i));
+        }
+    }
+}
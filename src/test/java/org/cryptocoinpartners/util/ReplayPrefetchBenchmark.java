@@ -0,0 +1,48 @@
+package org.cryptocoinpartners.util;
+
+import org.cryptocoinpartners.module.BasicQuoteService;
+import org.cryptocoinpartners.module.TickWindow;
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+
+import java.util.Collections;
+
+
+/**
+ * Replays the last few days of the configured database twice, serially and then prefetching, and prints the wall
+ * time of each.  The prefetching run also logs how long reading and publishing took and how much of it overlapped.
+ * Run main() directly against a database with saved market data; this is not a JUnit test.
+ */
+public class ReplayPrefetchBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int days = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int prefetch = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        ConfigUtil.init("cointrader.properties", Collections.<String,String>emptyMap());
+        Instant end = PersistUtil.queryOne(Instant.class, "select max(time) from Trade");
+        Instant start = end.minus(Duration.standardDays(days));
+
+        long serial = time(start, end, 0);
+        long prefetching = time(start, end, prefetch);
+        System.out.println(days + " days from " + start + " to " + end);
+        System.out.println("serial:\t\t" + serial + " ms");
+        System.out.println("prefetch " + prefetch + ":\t" + prefetching + " ms");
+        System.out.println("speedup:\t" + String.format("%.2fx", (double) serial / Math.max(1, prefetching)));
+        PersistUtil.shutdown();
+        System.exit(0); // the Esper timer thread is not a daemon
+    }
+
+
+    private static long time(Instant start, Instant end, int prefetch) {
+        Replay replay = Replay.between(start, end, false);
+        replay.setPrefetch(prefetch);
+        // a light strategy load, so the database is not the only cost
+        replay.getContext().attach(BasicQuoteService.class);
+        replay.getContext().attach(TickWindow.class);
+        long began = System.nanoTime();
+        replay.run();
+        long millis = (System.nanoTime() - began) / 1000000;
+        replay.getContext().destroy();
+        return millis;
+    }
+}